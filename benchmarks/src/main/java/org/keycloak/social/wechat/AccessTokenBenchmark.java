@@ -0,0 +1,78 @@
+package org.keycloak.social.wechat;
+
+import java.util.concurrent.TimeUnit;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Access token lookup under 1, 8 and 64 contending threads: the cached path, and a path where
+ * every call rejects the current token so callers pile up on the single-flight refresh.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccessTokenBenchmark {
+  private KeycloakSession session;
+  private WechatWorkProviderConfig config;
+
+  @Setup
+  public void setup() {
+    session = WechatWorkStubs.session(WechatWorkStubs.BROWSER_USER_AGENT);
+    config = WechatWorkStubs.config();
+    WechatWorkTokenManager.getAccessToken(session, config);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String cached1() {
+    return WechatWorkTokenManager.getAccessToken(session, config);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String cached8() {
+    return WechatWorkTokenManager.getAccessToken(session, config);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public String cached64() {
+    return WechatWorkTokenManager.getAccessToken(session, config);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String reset1() {
+    return reset();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String reset8() {
+    return reset();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public String reset64() {
+    return reset();
+  }
+
+  private String reset() {
+    String token = WechatWorkTokenManager.getAccessToken(session, config);
+    return WechatWorkTokenManager.resetAccessToken(session, config, token);
+  }
+}
@@ -0,0 +1,60 @@
+package org.keycloak.social.wechat;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.broker.provider.AuthenticationRequest;
+import org.keycloak.broker.provider.util.IdentityBrokerState;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The login redirect of {@code performLogin()} for the in-client OAuth and the QR code branch. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthorizationUrlBenchmark {
+  @Param({"wxwork", "browser"})
+  public String client;
+
+  private WechatWorkIdentityProvider provider;
+  private AuthenticationRequest request;
+
+  @Setup
+  public void setup() {
+    String userAgent =
+        "wxwork".equals(client)
+            ? WechatWorkStubs.WXWORK_USER_AGENT
+            : WechatWorkStubs.BROWSER_USER_AGENT;
+    KeycloakSession session = WechatWorkStubs.session(userAgent);
+    provider = new WechatWorkIdentityProvider(session, WechatWorkStubs.config());
+    IdentityBrokerState state =
+        IdentityBrokerState.decoded(
+            "8c1c0b2e-3f3c-4d9c-9d8e-6b1c0e0f6a11", null, "account-console", "q2XaQ8lUwhE");
+    request =
+        new AuthenticationRequest(
+            session,
+            null,
+            null,
+            null,
+            null,
+            state,
+            "https://sso.example.com/realms/demo/broker/wechat-work/endpoint");
+  }
+
+  @Benchmark
+  public URI performLogin() {
+    return provider.performLogin(request).getLocation();
+  }
+}
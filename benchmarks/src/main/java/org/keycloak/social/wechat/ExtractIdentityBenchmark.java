@@ -0,0 +1,42 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** {@code extractIdentityFromProfile()} on a realistic {@code user/get} payload. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractIdentityBenchmark {
+  private WechatWorkIdentityProvider provider;
+  private JsonNode profile;
+
+  @Setup
+  public void setup() throws Exception {
+    WechatWorkProviderConfig config = WechatWorkStubs.config();
+    provider =
+        new WechatWorkIdentityProvider(
+            WechatWorkStubs.session(WechatWorkStubs.BROWSER_USER_AGENT), config);
+    profile = new ObjectMapper().readTree(WechatWorkStubs.USER_GET_RESPONSE);
+  }
+
+  @Benchmark
+  public BrokeredIdentityContext extractIdentityFromProfile() {
+    return provider.extractIdentityFromProfile(null, profile);
+  }
+}
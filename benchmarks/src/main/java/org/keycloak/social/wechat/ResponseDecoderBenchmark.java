@@ -0,0 +1,58 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Field-selective streaming decode of a {@code user/get} response against a full Jackson tree.
+ * Run with {@code -prof gc} to compare the allocation per decoded response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseDecoderBenchmark {
+  private static final long MAX_BYTES = 1024 * 1024;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private byte[] body;
+  private Set<String> fields;
+
+  @Setup
+  public void setup() {
+    body = WechatWorkStubs.USER_GET_RESPONSE.getBytes(StandardCharsets.UTF_8);
+    fields = WechatWorkStubs.config().getProfileMapping().getProfileFields();
+  }
+
+  @Benchmark
+  public JsonNode tree() throws IOException {
+    return mapper.readTree(new ByteArrayInputStream(body));
+  }
+
+  @Benchmark
+  public JsonNode streamingSelectedFields() throws IOException {
+    return WechatWorkResponseDecoder.decode(new ByteArrayInputStream(body), fields, MAX_BYTES);
+  }
+
+  @Benchmark
+  public JsonNode streamingAllFields() throws IOException {
+    return WechatWorkResponseDecoder.decode(new ByteArrayInputStream(body), null, MAX_BYTES);
+  }
+}
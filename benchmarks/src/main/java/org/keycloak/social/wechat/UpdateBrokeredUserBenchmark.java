@@ -0,0 +1,66 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code updateBrokeredUser()} against an in-memory {@link UserModel}, for a returning user whose
+ * profile is unchanged and for a new, empty user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateBrokeredUserBenchmark {
+  @Param({"unchanged", "new"})
+  public String user;
+
+  private KeycloakSession session;
+  private WechatWorkIdentityProvider provider;
+  private BrokeredIdentityContext context;
+  private UserModel returning;
+
+  @Setup
+  public void setup() throws Exception {
+    session = WechatWorkStubs.session(WechatWorkStubs.BROWSER_USER_AGENT);
+    provider = new WechatWorkIdentityProvider(session, WechatWorkStubs.config());
+    context =
+        provider.extractIdentityFromProfile(
+            null, new ObjectMapper().readTree(WechatWorkStubs.USER_GET_RESPONSE));
+    returning = WechatWorkStubs.user();
+    provider.updateBrokeredUser(session, null, returning, context);
+  }
+
+  @State(Scope.Thread)
+  public static class Target {
+    UserModel model;
+
+    @Setup(Level.Invocation)
+    public void setup(UpdateBrokeredUserBenchmark benchmark) {
+      model = "new".equals(benchmark.user) ? WechatWorkStubs.user() : benchmark.returning;
+    }
+  }
+
+  @Benchmark
+  public UserModel updateBrokeredUser(Target target) {
+    provider.updateBrokeredUser(session, null, target.model, context);
+    return target.model;
+  }
+}
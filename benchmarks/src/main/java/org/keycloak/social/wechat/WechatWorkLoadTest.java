@@ -0,0 +1,173 @@
+package org.keycloak.social.wechat;
+
+import jakarta.ws.rs.core.Response;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import org.keycloak.Config;
+import org.keycloak.broker.provider.IdentityProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * Load driver pushing simulated OAuth callbacks through {@link Endpoint#authResponse} against a
+ * {@link WechatWorkSimulator}, then reporting throughput and latency percentiles.
+ *
+ * <p>Options are {@code key=value} arguments:
+ *
+ * <pre>
+ * callbacks=20000 warmup=2000 threads=64 users=5000
+ * latency=20 jitter=10 tokenTtl=7200 rateLimit=0 apiRateLimits=*=0
+ * error.42001=0.001 error.40014=0 error.-1=0.001 error.45009=0
+ * </pre>
+ */
+public final class WechatWorkLoadTest {
+  private final int callbacks;
+  private final int warmup;
+  private final int threads;
+  private final WechatWorkSimulator simulator;
+  private final WechatWorkProviderConfig config;
+  private final KeycloakSession session;
+  private final IdentityProvider.AuthenticationCallback callback;
+  private final AtomicInteger sequence = new AtomicInteger();
+  private final LongAdder failures = new LongAdder();
+
+  private WechatWorkLoadTest(Map<String, String> options) throws Exception {
+    callbacks = Integer.parseInt(options.getOrDefault("callbacks", "20000"));
+    warmup = Integer.parseInt(options.getOrDefault("warmup", "2000"));
+    threads = Integer.parseInt(options.getOrDefault("threads", "64"));
+
+    simulator =
+        WechatWorkSimulator.start(threads * 2)
+            .users(Integer.parseInt(options.getOrDefault("users", "5000")))
+            .latency(
+                Long.parseLong(options.getOrDefault("latency", "20")),
+                Long.parseLong(options.getOrDefault("jitter", "10")))
+            .tokenTtl(Long.parseLong(options.getOrDefault("tokenTtl", "7200")))
+            .rateLimit(Integer.parseInt(options.getOrDefault("rateLimit", "0")));
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      if (option.getKey().startsWith("error.")) {
+        simulator.errorRate(
+            Integer.parseInt(option.getKey().substring("error.".length())),
+            Double.parseDouble(option.getValue()));
+      }
+    }
+
+    config = WechatWorkStubs.config(simulator.getBaseUrl());
+    config.setApiMaxConcurrency(threads);
+    config.setApiRateLimits(options.getOrDefault("apiRateLimits", "*=0"));
+    session = WechatWorkStubs.session(WechatWorkStubs.BROWSER_USER_AGENT);
+    AuthenticationSessionModel authSession =
+        WechatWorkStubs.proxy(AuthenticationSessionModel.class, (name, args) -> null);
+    callback =
+        WechatWorkStubs.proxy(
+            IdentityProvider.AuthenticationCallback.class,
+            (name, args) -> {
+              switch (name) {
+                case "getAndVerifyAuthenticationSession":
+                  return authSession;
+                case "authenticated":
+                  return Response.ok().build();
+                default:
+                  return Response.status(Response.Status.BAD_GATEWAY).build();
+              }
+            });
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int index = arg.indexOf('=');
+      if (index < 0) {
+        throw new IllegalArgumentException("expected key=value, got " + arg);
+      }
+      options.put(arg.substring(0, index), arg.substring(index + 1));
+    }
+
+    // API 客户端从 Keycloak 配置读取代理设置，压测时改为读取系统属性
+    Config.init(new Config.SystemPropertiesConfigProvider());
+    WechatWorkLoadTest loadTest = new WechatWorkLoadTest(options);
+    PrintStream report = System.out;
+    // 失败的回调会记录日志，压测期间关闭
+    java.util.logging.Logger.getLogger("").setLevel(Level.OFF);
+    try (WechatWorkSimulator simulator = loadTest.run(report)) {
+      report.println("simulator calls:    " + simulator.getCalls());
+      report.println("simulator errcodes: " + simulator.getErrcodes());
+    }
+  }
+
+  private WechatWorkSimulator run(PrintStream report) throws InterruptedException {
+    report.printf(
+        "%d callbacks (+%d warmup) on %d threads against %s%n",
+        callbacks, warmup, threads, simulator.getBaseUrl());
+    drive(warmup);
+    failures.reset();
+
+    long start = System.nanoTime();
+    long[] latencies = drive(callbacks);
+    long elapsed = System.nanoTime() - start;
+
+    Arrays.sort(latencies);
+    report.printf(
+        "throughput: %.1f callbacks/s, failed: %d%n",
+        callbacks / (elapsed / 1e9), failures.sum());
+    report.printf(
+        "latency ms: p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+        percentile(latencies, 0.5),
+        percentile(latencies, 0.9),
+        percentile(latencies, 0.99),
+        percentile(latencies, 0.999),
+        latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6);
+    return simulator;
+  }
+
+  private long[] drive(int count) throws InterruptedException {
+    long[] latencies = new long[count];
+    AtomicInteger next = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int t = 0; t < threads; t++) {
+      executor.execute(
+          () -> {
+            for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+              latencies[i] = callback();
+            }
+          });
+    }
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.HOURS);
+    return latencies;
+  }
+
+  /** Sends one callback the way Keycloak's broker resource does, returning its duration. */
+  private long callback() {
+    int n = sequence.incrementAndGet();
+    long start = System.nanoTime();
+    try {
+      WechatWorkIdentityProvider provider = new WechatWorkIdentityProvider(session, config);
+      Endpoint endpoint = (Endpoint) provider.callback(null, callback, null);
+      Response response = endpoint.authResponse("state-" + n, "code-" + n, null, null);
+      if (response.getStatus() >= 400) {
+        failures.increment();
+      }
+    } catch (RuntimeException e) {
+      // 桩环境中错误页无法渲染，按失败计
+      failures.increment();
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+  }
+}
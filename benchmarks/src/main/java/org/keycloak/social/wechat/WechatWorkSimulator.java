@@ -0,0 +1,407 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Embedded stand-in for the WeCom server API, for load tests against {@link
+ * WechatWorkProviderConfig#getApiBaseUrl()}.
+ *
+ * <p>Implements {@code gettoken}, {@code user/getuserinfo}, {@code user/get}, {@code
+ * auth/getuserdetail}, and {@code department/simplelist}, {@code department/list} and {@code
+ * user/list} for the directory sync and the department tree, with one department per 100 members.
+ * Like WeCom, {@code user/getuserinfo} accepts an OAuth code only once and answers 40029 when it
+ * is used again, so replayed codes show up in {@link #getErrcodes()}. Latency, token lifetime, a
+ * per-second rate limit and the rate of injected errcodes can be changed while it runs:
+ *
+ * <ul>
+ *   <li>42001: the token used is marked expired, as WeCom does once {@code expires_in} passed
+ *   <li>40014: the token used is forgotten, as after the secret was reset
+ *   <li>-1: system busy, the call may simply be retried
+ *   <li>45009: API frequency out of limit, also returned once the rate limit is exceeded
+ * </ul>
+ */
+final class WechatWorkSimulator implements AutoCloseable {
+  static final int ERRCODE_SYSTEM_BUSY = -1;
+  static final int ERRCODE_INVALID_TOKEN = 40014;
+  static final int ERRCODE_INVALID_CODE = 40029;
+  static final int ERRCODE_TOKEN_EXPIRED = 42001;
+  static final int ERRCODE_FREQ_OUT_OF_LIMIT = 45009;
+
+  private static final String CGI_BIN = "/cgi-bin";
+  private static final int MEMBERS_PER_DEPARTMENT = 100;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final ObjectNode profileTemplate;
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  // access_token -> 过期时间（毫秒）
+  private final ConcurrentMap<String, Long> tokens = new ConcurrentHashMap<>();
+  private final AtomicLong tokenSequence = new AtomicLong();
+  // 已使用过的 OAuth code
+  private final Set<String> usedCodes = ConcurrentHashMap.newKeySet();
+  private final ConcurrentMap<Integer, Double> errorRates = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongAdder> calls = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Integer, LongAdder> errcodes = new ConcurrentHashMap<>();
+  private final AtomicLong rateWindow = new AtomicLong();
+  private final AtomicInteger rateWindowCalls = new AtomicInteger();
+
+  private volatile long latencyMillis;
+  private volatile long latencyJitterMillis;
+  private volatile long tokenTtlSeconds = 7200;
+  private volatile int rateLimitPerSecond;
+  private volatile int users = 10000;
+
+  static {
+    // 响应头和响应体分两次写出，不关闭 Nagle 算法时每次调用会多等一个 delayed ACK
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  private WechatWorkSimulator(int threads) throws IOException {
+    profileTemplate = (ObjectNode) mapper.readTree(WechatWorkStubs.USER_GET_RESPONSE);
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+    executor =
+        Executors.newFixedThreadPool(
+            threads,
+            r -> {
+              Thread thread = new Thread(r, "wechat-work-simulator");
+              thread.setDaemon(true);
+              return thread;
+            });
+    server.setExecutor(executor);
+    server.createContext(CGI_BIN + WechatWorkIdentityProvider.TOKEN_PATH, this::handle);
+    server.createContext(CGI_BIN + WechatWorkIdentityProvider.PROFILE_PATH, this::handle);
+    server.createContext(CGI_BIN + WechatWorkIdentityProvider.PROFILE_DETAIL_PATH, this::handle);
+    server.createContext(CGI_BIN + WechatWorkIdentityProvider.USER_DETAIL_PATH, this::handle);
+    server.createContext(CGI_BIN + WechatWorkIdentityProvider.DEPARTMENT_LIST_PATH, this::handle);
+    server.createContext(CGI_BIN + WechatWorkIdentityProvider.USER_LIST_PATH, this::handle);
+    server.createContext(CGI_BIN + WechatWorkIdentityProvider.DEPARTMENT_TREE_PATH, this::handle);
+  }
+
+  /** Starts a simulator on a free loopback port, serving with {@code threads} worker threads. */
+  static WechatWorkSimulator start(int threads) throws IOException {
+    WechatWorkSimulator simulator = new WechatWorkSimulator(threads);
+    simulator.server.start();
+    return simulator;
+  }
+
+  /** Value for {@link WechatWorkProviderConfig#API_BASE_URL}. */
+  String getBaseUrl() {
+    InetSocketAddress address = server.getAddress();
+    return "http://" + address.getHostString() + ":" + address.getPort() + CGI_BIN;
+  }
+
+  /** Delays every response by {@code millis} plus a uniformly distributed {@code jitterMillis}. */
+  WechatWorkSimulator latency(long millis, long jitterMillis) {
+    latencyMillis = millis;
+    latencyJitterMillis = jitterMillis;
+    return this;
+  }
+
+  /** {@code expires_in} of issued tokens; tokens used after it passed get 42001. */
+  WechatWorkSimulator tokenTtl(long seconds) {
+    tokenTtlSeconds = seconds;
+    return this;
+  }
+
+  /** Calls per second accepted over all APIs before answering 45009, 0 for no limit. */
+  WechatWorkSimulator rateLimit(int callsPerSecond) {
+    rateLimitPerSecond = callsPerSecond;
+    return this;
+  }
+
+  /** Share of calls answered with {@code errcode}, one of 42001, 40014, -1 and 45009. */
+  WechatWorkSimulator errorRate(int errcode, double rate) {
+    if (rate > 0) {
+      errorRates.put(errcode, rate);
+    } else {
+      errorRates.remove(errcode);
+    }
+    return this;
+  }
+
+  /** Number of distinct members that OAuth codes are mapped to. */
+  WechatWorkSimulator users(int count) {
+    users = Math.max(1, count);
+    return this;
+  }
+
+  /** Calls received per API, e.g. {@code user/get}. */
+  Map<String, Long> getCalls() {
+    return snapshot(calls);
+  }
+
+  /** Non-zero errcodes answered, with their counts. */
+  Map<Integer, Long> getErrcodes() {
+    return snapshot(errcodes);
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String api = exchange.getRequestURI().getPath().substring(CGI_BIN.length() + 1);
+    calls.computeIfAbsent(api, k -> new LongAdder()).increment();
+    try (InputStream body = exchange.getRequestBody()) {
+      sleep();
+      Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+      JsonNode request =
+          "POST".equals(exchange.getRequestMethod()) ? mapper.readTree(body) : null;
+      respond(exchange, answer(api, params, request));
+    } catch (RuntimeException e) {
+      respond(exchange, error(ERRCODE_SYSTEM_BUSY, "system busy"));
+    }
+  }
+
+  private ObjectNode answer(String api, Map<String, String> params, JsonNode request) {
+    if (!acquireRate()) {
+      return error(ERRCODE_FREQ_OUT_OF_LIMIT, "api freq out of limit");
+    }
+    if (inject(ERRCODE_FREQ_OUT_OF_LIMIT)) {
+      return error(ERRCODE_FREQ_OUT_OF_LIMIT, "api freq out of limit");
+    }
+    if (inject(ERRCODE_SYSTEM_BUSY)) {
+      return error(ERRCODE_SYSTEM_BUSY, "system busy");
+    }
+    if (api.equals(WechatWorkIdentityProvider.TOKEN_PATH.substring(1))) {
+      return issueToken(params);
+    }
+
+    String token = params.get("access_token");
+    Long expiresAt = token == null ? null : tokens.get(token);
+    if (expiresAt == null) {
+      return error(ERRCODE_INVALID_TOKEN, "invalid access_token");
+    } else if (expiresAt < System.currentTimeMillis()) {
+      return error(ERRCODE_TOKEN_EXPIRED, "access_token expired");
+    } else if (inject(ERRCODE_TOKEN_EXPIRED)) {
+      tokens.put(token, 0L);
+      return error(ERRCODE_TOKEN_EXPIRED, "access_token expired");
+    } else if (inject(ERRCODE_INVALID_TOKEN)) {
+      tokens.remove(token);
+      return error(ERRCODE_INVALID_TOKEN, "invalid access_token");
+    }
+
+    if (api.equals(WechatWorkIdentityProvider.PROFILE_PATH.substring(1))) {
+      return getUserInfo(params.get("code"));
+    } else if (api.equals(WechatWorkIdentityProvider.PROFILE_DETAIL_PATH.substring(1))) {
+      return getUser(params.get("userid"));
+    } else if (api.equals(WechatWorkIdentityProvider.DEPARTMENT_LIST_PATH.substring(1))) {
+      return listDepartments("department_id", false);
+    } else if (api.equals(WechatWorkIdentityProvider.DEPARTMENT_TREE_PATH.substring(1))) {
+      return listDepartments("department", true);
+    } else if (api.equals(WechatWorkIdentityProvider.USER_LIST_PATH.substring(1))) {
+      return listUsers(params.get("department_id"));
+    }
+    return getUserDetail(request == null ? null : request.path("user_ticket").asText(null));
+  }
+
+  private int departments() {
+    return Math.max(1, users / MEMBERS_PER_DEPARTMENT);
+  }
+
+  private ObjectNode listDepartments(String field, boolean withNames) {
+    ObjectNode result = ok();
+    ArrayNode departments = result.putArray(field);
+    for (int id = 1; id <= departments(); id++) {
+      ObjectNode department = departments.addObject();
+      department.put("id", id);
+      if (withNames) {
+        department.put("name", id == 1 ? "corp" : "department" + id);
+      }
+      department.put("parentid", id == 1 ? 0 : 1);
+      department.put("order", id);
+    }
+    return result;
+  }
+
+  private ObjectNode listUsers(String departmentId) {
+    int department;
+    try {
+      department = Integer.parseInt(departmentId);
+    } catch (NumberFormatException e) {
+      return error(60003, "department not found");
+    }
+    if (department < 1 || department > departments()) {
+      return error(60003, "department not found");
+    }
+    ObjectNode result = ok();
+    ArrayNode members = result.putArray("userlist");
+    for (int n = department - 1; n < users; n += departments()) {
+      ObjectNode member = getUser("user" + n);
+      member.remove("errcode");
+      member.remove("errmsg");
+      member.putArray("department").add(department);
+      members.add(member);
+    }
+    return result;
+  }
+
+  private ObjectNode issueToken(Map<String, String> params) {
+    if (params.get("corpid") == null || params.get("corpsecret") == null) {
+      return error(40013, "invalid corpid");
+    }
+    String token = "sim-token-" + tokenSequence.incrementAndGet();
+    long ttl = tokenTtlSeconds;
+    tokens.put(token, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl));
+    ObjectNode result = ok();
+    result.put("access_token", token);
+    result.put("expires_in", ttl);
+    return result;
+  }
+
+  private ObjectNode getUserInfo(String code) {
+    if (code == null || code.isEmpty()) {
+      return error(ERRCODE_INVALID_CODE, "invalid code");
+    }
+    if (!usedCodes.add(code)) {
+      return error(ERRCODE_INVALID_CODE, "code been used");
+    }
+    String userId = userId(code);
+    ObjectNode result = ok();
+    result.put("UserId", userId);
+    result.put("DeviceId", "");
+    result.put("user_ticket", "ticket-" + userId);
+    result.put("expires_in", 1800);
+    return result;
+  }
+
+  private ObjectNode getUser(String userId) {
+    if (userId == null || userId.isEmpty()) {
+      return error(60111, "userid not found");
+    }
+    ObjectNode result = profileTemplate.deepCopy();
+    result.put("userid", userId);
+    result.put("name", userId);
+    result.put("email", userId.toLowerCase() + "@example.com");
+    result.put("biz_mail", userId.toLowerCase() + "@example.onexmail.com");
+    return result;
+  }
+
+  private ObjectNode getUserDetail(String userTicket) {
+    if (userTicket == null || !userTicket.startsWith("ticket-")) {
+      return error(40129, "invalid user_ticket");
+    }
+    ObjectNode profile = getUser(userTicket.substring("ticket-".length()));
+    ObjectNode result = ok();
+    for (String field :
+        new String[] {"userid", "gender", "avatar", "qr_code", "mobile", "email", "biz_mail"}) {
+      result.set(field, profile.get(field));
+    }
+    result.set("address", profile.get("address"));
+    return result;
+  }
+
+  private String userId(String code) {
+    return "user" + Math.floorMod(code.hashCode(), users);
+  }
+
+  private boolean acquireRate() {
+    int limit = rateLimitPerSecond;
+    if (limit <= 0) {
+      return true;
+    }
+    long second = System.currentTimeMillis() / 1000;
+    long window = rateWindow.get();
+    if (window != second && rateWindow.compareAndSet(window, second)) {
+      rateWindowCalls.set(0);
+    }
+    return rateWindowCalls.incrementAndGet() <= limit;
+  }
+
+  private boolean inject(int errcode) {
+    Double rate = errorRates.get(errcode);
+    return rate != null && ThreadLocalRandom.current().nextDouble() < rate;
+  }
+
+  private void sleep() {
+    long millis = latencyMillis;
+    long jitter = latencyJitterMillis;
+    if (jitter > 0) {
+      millis += ThreadLocalRandom.current().nextLong(jitter + 1);
+    }
+    if (millis > 0) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private ObjectNode ok() {
+    ObjectNode result = mapper.createObjectNode();
+    result.put("errcode", 0);
+    result.put("errmsg", "ok");
+    return result;
+  }
+
+  private ObjectNode error(int errcode, String errmsg) {
+    errcodes.computeIfAbsent(errcode, k -> new LongAdder()).increment();
+    ObjectNode result = mapper.createObjectNode();
+    result.put("errcode", errcode);
+    result.put("errmsg", errmsg);
+    return result;
+  }
+
+  private void respond(HttpExchange exchange, ObjectNode result) throws IOException {
+    byte[] body = mapper.writeValueAsBytes(result);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> params = new HashMap<>();
+    if (query == null) {
+      return params;
+    }
+    try {
+      for (String pair : query.split("&")) {
+        int index = pair.indexOf('=');
+        if (index > 0) {
+          params.put(
+              URLDecoder.decode(pair.substring(0, index), "UTF-8"),
+              URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+    return params;
+  }
+
+  private static <K> Map<K, Long> snapshot(Map<K, LongAdder> counters) {
+    Map<K, Long> result = new TreeMap<>();
+    counters.forEach((key, counter) -> result.put(key, counter.sum()));
+    return result;
+  }
+}
@@ -0,0 +1,277 @@
+package org.keycloak.social.wechat;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/** Offline stand-ins for the Keycloak runtime and the WeCom API used by the benchmarks. */
+final class WechatWorkStubs {
+  static final String WXWORK_USER_AGENT =
+      "Mozilla/5.0 (iPhone; CPU iPhone OS 16_0 like Mac OS X) AppleWebKit/605.1.15 "
+          + "(KHTML, like Gecko) Mobile/15E148 wxwork/4.1.10 MicroMessenger/7.0.1 Language/zh";
+  static final String BROWSER_USER_AGENT =
+      "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 "
+          + "(KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36";
+
+  static final String TOKEN_RESPONSE =
+      "{\"errcode\":0,\"errmsg\":\"ok\",\"access_token\":\"stub-access-token\",\"expires_in\":7200}";
+  static final String USERINFO_RESPONSE =
+      "{\"UserId\":\"ZhongXun\",\"DeviceId\":\"10000556333395ZN\",\"errcode\":0,\"errmsg\":\"ok\"}";
+  static final String USER_GET_RESPONSE = resource("user-get.json");
+
+  private WechatWorkStubs() {}
+
+  static {
+    // 避免日志输出影响测量结果
+    java.util.logging.Logger.getLogger("").setLevel(Level.WARNING);
+  }
+
+  /** A provider config whose WeCom API calls are answered by {@link StubHttpClient}. */
+  static WechatWorkProviderConfig config() {
+    WechatWorkApiClient.setTransport(config -> new StubHttpClient());
+    return config(null);
+  }
+
+  /** A provider config talking to the WeCom API at {@code apiBaseUrl}, or the default one. */
+  static WechatWorkProviderConfig config(String apiBaseUrl) {
+    IdentityProviderModel model = new IdentityProviderModel();
+    model.setAlias("wechat-work");
+    model.setProviderId(WechatWorkIdentityProviderFactory.PROVIDER_ID);
+    model.setConfig(new HashMap<>());
+    model.getConfig().put("clientId", "ww0123456789abcdef");
+    model.getConfig().put("clientSecret", "stub-secret");
+    model.getConfig().put(WechatWorkIdentityProvider.OAUTH2_PARAMETER_AGENT_ID, "1000004");
+    // 基准测试的调用频率远超企业微信配额，不做本地限流
+    model.getConfig().put(WechatWorkProviderConfig.API_RATE_LIMITS, "*=0");
+    if (apiBaseUrl != null) {
+      model.getConfig().put(WechatWorkProviderConfig.API_BASE_URL, apiBaseUrl);
+    }
+    return new WechatWorkProviderConfig(model);
+  }
+
+  /**
+   * A session in a realm without mappers whose request carries {@code userAgent}. Its session
+   * factory hands out further stub sessions, so background token refreshes run as well.
+   */
+  static KeycloakSession session(String userAgent) {
+    HttpHeaders headers =
+        proxy(
+            HttpHeaders.class,
+            (name, args) ->
+                "getHeaderString".equals(name) && "user-agent".equalsIgnoreCase((String) args[0])
+                    ? userAgent
+                    : null);
+    KeycloakContext context =
+        proxy(
+            KeycloakContext.class,
+            (name, args) -> {
+              switch (name) {
+                case "getRequestHeaders":
+                  return headers;
+                case "getRealm":
+                  return REALM;
+                default:
+                  return null;
+              }
+            });
+    return proxy(
+        KeycloakSession.class,
+        (name, args) -> {
+          switch (name) {
+            case "getContext":
+              return context;
+            case "getKeycloakSessionFactory":
+              return SESSION_FACTORY;
+            case "getTransactionManager":
+              return TRANSACTION_MANAGER;
+            default:
+              return null;
+          }
+        });
+  }
+
+  private static final RealmModel REALM =
+      proxy(
+          RealmModel.class,
+          (name, args) -> {
+            switch (name) {
+              case "getId":
+              case "getName":
+                return "demo";
+              case "getIdentityProviderMappersByAliasStream":
+                return Stream.empty();
+              default:
+                return null;
+            }
+          });
+
+  private static final KeycloakTransactionManager TRANSACTION_MANAGER =
+      proxy(KeycloakTransactionManager.class, (name, args) -> null);
+
+  private static final KeycloakSessionFactory SESSION_FACTORY =
+      proxy(
+          KeycloakSessionFactory.class,
+          (name, args) -> "create".equals(name) ? session(BROWSER_USER_AGENT) : null);
+
+  /** An in-memory user keeping attributes and basic fields in maps. */
+  static UserModel user() {
+    Map<String, List<String>> attributes = new HashMap<>();
+    Map<String, String> fields = new HashMap<>();
+    return proxy(
+        UserModel.class,
+        (name, args) -> {
+          switch (name) {
+            case "getAttributeStream":
+              return attributes.getOrDefault((String) args[0], Collections.emptyList()).stream();
+            case "getFirstAttribute":
+              List<String> values = attributes.get((String) args[0]);
+              return values == null || values.isEmpty() ? null : values.get(0);
+            case "setSingleAttribute":
+              List<String> value = new ArrayList<>();
+              value.add((String) args[1]);
+              attributes.put((String) args[0], value);
+              return null;
+            case "removeAttribute":
+              attributes.remove((String) args[0]);
+              return null;
+            case "getUsername":
+            case "getEmail":
+            case "getFirstName":
+            case "getLastName":
+              return fields.get(name.substring(3));
+            case "setUsername":
+            case "setEmail":
+              fields.put(name.substring(3), args[0] == null ? null : ((String) args[0]).toLowerCase());
+              return null;
+            case "setFirstName":
+            case "setLastName":
+              fields.put(name.substring(3), (String) args[0]);
+              return null;
+            default:
+              return null;
+          }
+        });
+  }
+
+  @SuppressWarnings("unchecked")
+  static <T> T proxy(Class<T> type, Handler handler) {
+    return (T)
+        Proxy.newProxyInstance(
+            WechatWorkStubs.class.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> {
+              if ("hashCode".equals(method.getName())) {
+                return System.identityHashCode(proxy);
+              } else if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+              } else if ("toString".equals(method.getName())) {
+                return type.getSimpleName() + " stub";
+              }
+              Object result = handler.handle(method.getName(), args);
+              return result == null ? defaultValue(method.getReturnType()) : result;
+            });
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  private static String resource(String name) {
+    try (InputStream in = WechatWorkStubs.class.getResourceAsStream("/" + name)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int n; (n = in.read(buffer)) > 0; ) {
+        out.write(buffer, 0, n);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  interface Handler {
+    Object handle(String method, Object[] args);
+  }
+
+  /** Answers WeCom API requests from canned payloads without touching the network. */
+  static final class StubHttpClient extends CloseableHttpClient {
+    @Override
+    protected CloseableHttpResponse doExecute(
+        HttpHost target, HttpRequest request, HttpContext context) {
+      String uri = request.getRequestLine().getUri();
+      String body;
+      if (uri.contains("/cgi-bin/gettoken")) {
+        body = TOKEN_RESPONSE;
+      } else if (uri.contains("/cgi-bin/user/getuserinfo")) {
+        body = USERINFO_RESPONSE;
+      } else {
+        body = USER_GET_RESPONSE;
+      }
+      StubResponse response = new StubResponse();
+      response.setEntity(
+          new ByteArrayEntity(body.getBytes(StandardCharsets.UTF_8), ContentType.APPLICATION_JSON));
+      return response;
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    @Deprecated
+    public HttpParams getParams() {
+      return new BasicHttpParams();
+    }
+
+    @Override
+    @Deprecated
+    public ClientConnectionManager getConnectionManager() {
+      return null;
+    }
+  }
+
+  private static final class StubResponse extends BasicHttpResponse
+      implements CloseableHttpResponse {
+    StubResponse() {
+      super(HttpVersion.HTTP_1_1, 200, "OK");
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -3,16 +3,14 @@ package org.keycloak.social.wechat;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.WebApplicationException;
-import jakarta.ws.rs.core.Context;
-import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.Response;
-import jakarta.ws.rs.core.UriInfo;
+import org.jboss.logging.Logger;
 import org.keycloak.OAuth2Constants;
 import org.keycloak.OAuthErrorException;
 import org.keycloak.broker.oidc.AbstractOAuth2IdentityProvider;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityBrokerException;
 import org.keycloak.broker.provider.IdentityProvider;
-import org.keycloak.common.ClientConnection;
 import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.events.EventType;
@@ -22,30 +20,24 @@ import org.keycloak.services.ErrorPage;
 import org.keycloak.services.messages.Messages;
 import org.keycloak.sessions.AuthenticationSessionModel;
 
-class Endpoint extends WechatWorkIdentityProvider {
-    private final WechatWorkIdentityProvider wechatWorkIdentityProvider;
-    protected IdentityProvider.AuthenticationCallback callback;
-    protected RealmModel realm;
-    protected EventBuilder event;
-
-    @Context
-    protected KeycloakSession session;
-
-    @Context
-    protected ClientConnection clientConnection;
+/** OAuth callback resource, delegating all WeCom calls to the provider that created it. */
+class Endpoint {
+    private static final Logger logger = Logger.getLogger(Endpoint.class);
+    // 消息文本见 theme-resources/messages，主题可覆盖
+    private static final String RATE_LIMITED_MESSAGE = "wechatWorkRateLimitedMessage";
 
-    @Context
-    protected HttpHeaders headers;
-
-    @Context
-    protected UriInfo uriInfo;
+    private final WechatWorkIdentityProvider wechatWorkIdentityProvider;
+    protected final IdentityProvider.AuthenticationCallback callback;
+    protected final RealmModel realm;
+    protected final EventBuilder event;
+    protected final KeycloakSession session;
 
     public Endpoint(WechatWorkIdentityProvider wechatWorkIdentityProvider, IdentityProvider.AuthenticationCallback callback, RealmModel realm, EventBuilder event) {
-        super(wechatWorkIdentityProvider.session, wechatWorkIdentityProvider.getConfig());
         this.wechatWorkIdentityProvider = wechatWorkIdentityProvider;
         this.callback = callback;
         this.realm = realm;
         this.event = event;
+        this.session = wechatWorkIdentityProvider.session;
     }
 
     @GET
@@ -54,7 +46,21 @@ class Endpoint extends WechatWorkIdentityProvider {
             @QueryParam(AbstractOAuth2IdentityProvider.OAUTH2_PARAMETER_CODE) String authorizationCode,
             @QueryParam(OAuth2Constants.ERROR) String error,
             @QueryParam("appid") String client_id) {
-        AbstractOAuth2IdentityProvider.logger.info("OAUTH2_PARAMETER_CODE=" + authorizationCode);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Response response = handleAuthResponse(state, authorizationCode, error);
+            success = response.getStatus() < 400;
+            return response;
+        } finally {
+            WechatWorkMetrics.recordCallback(System.nanoTime() - start, success);
+        }
+    }
+
+    private Response handleAuthResponse(String state, String authorizationCode, String error) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("OAUTH2_PARAMETER_CODE=" + authorizationCode);
+        }
 
         // 以下样版代码从 AbstractOAuth2IdentityProvider 里获取的。
         if (state == null) {
@@ -69,7 +75,7 @@ class Endpoint extends WechatWorkIdentityProvider {
             }
 
             if (error != null) {
-                AbstractOAuth2IdentityProvider.logger.error(error + " for broker login " + wechatWorkIdentityProvider.getConfig().getProviderId());
+                logger.error(error + " for broker login " + wechatWorkIdentityProvider.getConfig().getProviderId());
                 if (error.equals(AbstractOAuth2IdentityProvider.ACCESS_DENIED)) {
                     return callback.cancelled(wechatWorkIdentityProvider.getConfig());
                 } else if (error.equals(OAuthErrorException.LOGIN_REQUIRED)
@@ -81,7 +87,7 @@ class Endpoint extends WechatWorkIdentityProvider {
             }
 
             if (authorizationCode != null) {
-                BrokeredIdentityContext federatedIdentity = wechatWorkIdentityProvider.getFederatedIdentity(authorizationCode);
+                BrokeredIdentityContext federatedIdentity = wechatWorkIdentityProvider.getFederatedIdentity(authorizationCode, state);
 
                 federatedIdentity.setIdpConfig(wechatWorkIdentityProvider.getConfig());
                 federatedIdentity.setIdp(wechatWorkIdentityProvider);
@@ -90,18 +96,29 @@ class Endpoint extends WechatWorkIdentityProvider {
                 return callback.authenticated(federatedIdentity);
             }
         } catch (WebApplicationException e) {
-            e.printStackTrace(System.out);
+            logger.debug("broker login answered with an error response", e);
             return e.getResponse();
+        } catch (WechatWorkRateLimitException e) {
+            // 本地限流，告诉用户稍后重试，而不是笼统的错误
+            logger.warn("WeCom broker login rate limited: " + e.getMessage());
+            return errorIdentityProviderLogin(Response.Status.TOO_MANY_REQUESTS, RATE_LIMITED_MESSAGE);
+        } catch (IdentityBrokerException e) {
+            // 企业微信返回错误码、熔断或重试耗尽，原因已在消息中，无需堆栈
+            logger.warn("WeCom broker login failed: " + e.getMessage());
+            return errorIdentityProviderLogin(Messages.IDENTITY_PROVIDER_UNEXPECTED_ERROR);
         } catch (Exception e) {
-            AbstractOAuth2IdentityProvider.logger.error("Failed to make identity provider oauth callback", e);
-            e.printStackTrace(System.out);
+            logger.error("Failed to make identity provider oauth callback", e);
         }
         return errorIdentityProviderLogin(Messages.IDENTITY_PROVIDER_UNEXPECTED_ERROR);
     }
 
     private Response errorIdentityProviderLogin(String message) {
+        return errorIdentityProviderLogin(Response.Status.BAD_GATEWAY, message);
+    }
+
+    private Response errorIdentityProviderLogin(Response.Status status, String message) {
         event.event(EventType.IDENTITY_PROVIDER_LOGIN);
         event.error(Errors.IDENTITY_PROVIDER_LOGIN_FAILURE);
-        return ErrorPage.error(session, null, Response.Status.BAD_GATEWAY, message);
+        return ErrorPage.error(session, null, status, message);
     }
 }
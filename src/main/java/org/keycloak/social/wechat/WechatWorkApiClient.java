@@ -0,0 +1,345 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.connections.httpclient.HttpClientBuilder;
+import org.keycloak.connections.httpclient.ProxyMappings;
+
+/**
+ * HTTP client for the WeCom server API, {@link WechatWorkProviderConfig#getApiBaseUrl()}.
+ *
+ * <p>One client per identity provider, holding a keep-alive connection pool with bounded
+ * connect/read timeouts. Identity providers of different realms sharing a corp/agent get their own
+ * clients, so their settings never replace each other's pool. At most {@link
+ * WechatWorkProviderConfig#getApiMaxConcurrency()} calls run at once; further callers wait up to
+ * the connect timeout for a slot and then fail fast, so a slow WeCom endpoint cannot tie up every
+ * Keycloak worker thread. Failed calls are retried, or rejected outright while WeCom keeps
+ * failing, by the corp's {@link WechatWorkRetryPolicy}. Every attempt the retry policy lets
+ * through then takes a token from the corp's {@link WechatWorkRateLimiter}; a retry does not wait
+ * for one and is given up when none is left. Responses are decoded with {@link
+ * WechatWorkResponseDecoder}, keeping only the fields the caller asks for.
+ *
+ * <p>The pool is built with Keycloak's {@link HttpClientBuilder} and uses the proxy of the
+ * default {@code connectionsHttpClient} provider: its {@code proxy-mappings} option, or the
+ * {@code HTTPS_PROXY} and {@code NO_PROXY} variables. The provider's trust store and client key
+ * store are not applied; WeCom is trusted through the JVM's default trust store.
+ */
+final class WechatWorkApiClient {
+  private static final Logger logger = Logger.getLogger(WechatWorkApiClient.class);
+
+  private static final long IDLE_CONNECTION_SECONDS = 60;
+  // 被替换或移除的客户端延迟关闭，让仍在进行的调用（含重试）先完成
+  private static final long RETIRE_DELAY_SECONDS = 120;
+  private static final String CGI_BIN = "/cgi-bin/";
+  private static final String HTTP_CLIENT_SPI = "connectionsHttpClient";
+  private static final String PROXY_MAPPINGS = "proxy-mappings";
+
+  private static final ConcurrentMap<String, WechatWorkApiClient> clients =
+      new ConcurrentHashMap<>();
+  private static final ScheduledExecutorService retirements =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "wechat-work-api-client-close");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private static volatile Function<WechatWorkProviderConfig, CloseableHttpClient> transport =
+      WechatWorkApiClient::createHttpClient;
+
+  private final String settings;
+  private final CloseableHttpClient httpClient;
+  private final Semaphore permits;
+  private final int acquireTimeoutMillis;
+  private final long maxResponseBytes;
+  private final WechatWorkRetryPolicy policy;
+  private final WechatWorkRateLimiter limiter;
+
+  private WechatWorkApiClient(WechatWorkProviderConfig config, CloseableHttpClient httpClient) {
+    this.settings = settings(config);
+    this.httpClient = httpClient;
+    this.permits = new Semaphore(config.getApiMaxConcurrency());
+    this.acquireTimeoutMillis = config.getApiConnectTimeout();
+    this.maxResponseBytes = config.getApiMaxResponseSize();
+    this.policy = WechatWorkRetryPolicy.of(config);
+    this.limiter = WechatWorkRateLimiter.of(config);
+  }
+
+  private static CloseableHttpClient createHttpClient(WechatWorkProviderConfig config) {
+    int maxConcurrency = config.getApiMaxConcurrency();
+    return new HttpClientBuilder()
+        .establishConnectionTimeout(config.getApiConnectTimeout(), TimeUnit.MILLISECONDS)
+        .socketTimeout(config.getApiReadTimeout(), TimeUnit.MILLISECONDS)
+        .connectionPoolSize(maxConcurrency)
+        .maxPooledPerRoute(maxConcurrency)
+        .maxConnectionIdleTime(IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS)
+        .proxyMappings(proxyMappings())
+        .build();
+  }
+
+  /** Proxy settings of Keycloak's default HTTP client provider. */
+  private static ProxyMappings proxyMappings() {
+    String httpsProxy = System.getenv("HTTPS_PROXY");
+    if (httpsProxy == null || httpsProxy.trim().isEmpty()) {
+      httpsProxy = System.getenv("HTTP_PROXY");
+    }
+    if (httpsProxy != null && !httpsProxy.trim().isEmpty()) {
+      return ProxyMappings.withFixedProxyMapping(httpsProxy, System.getenv("NO_PROXY"));
+    }
+    return ProxyMappings.valueOf(
+        Config.scope(HTTP_CLIENT_SPI, "default").getArray(PROXY_MAPPINGS));
+  }
+
+  /**
+   * Test seam: builds the transport of clients created from now on with {@code factory}, e.g. a
+   * stub for offline benchmarks. Existing clients are left alone.
+   */
+  static void setTransport(Function<WechatWorkProviderConfig, CloseableHttpClient> factory) {
+    transport = factory;
+  }
+
+  /**
+   * Returns the client of the identity provider of {@code config}, building a new one when its
+   * settings changed. The replaced client is closed once its calls had time to finish.
+   */
+  static WechatWorkApiClient get(WechatWorkProviderConfig config) {
+    String key = config.getInstanceKey();
+    String settings = settings(config);
+    WechatWorkApiClient client = clients.get(key);
+    if (client != null && client.settings.equals(settings)) {
+      return client;
+    }
+    WechatWorkApiClient created =
+        clients.compute(
+            key,
+            (k, current) ->
+                current != null && current.settings.equals(settings)
+                    ? current
+                    : new WechatWorkApiClient(config, transport.apply(config)));
+    if (client != null && client != created) {
+      client.retire();
+    }
+    return created;
+  }
+
+  /** Retires the client of the identity provider of {@code config} after it was removed. */
+  static void evict(WechatWorkProviderConfig config) {
+    WechatWorkApiClient client = clients.remove(config.getInstanceKey());
+    if (client != null) {
+      client.retire();
+    }
+  }
+
+  /** Everything a client is built from, including the corp its retry policy and limiter serve. */
+  private static String settings(WechatWorkProviderConfig config) {
+    return config.getClientId()
+        + ":"
+        + config.getApiConnectTimeout()
+        + ":"
+        + config.getApiReadTimeout()
+        + ":"
+        + config.getApiMaxConcurrency()
+        + ":"
+        + config.getApiMaxResponseSize()
+        + ":"
+        + config.getApiRateLimits();
+  }
+
+  /**
+   * Sends a GET request to {@code url} with the given query parameters and decodes the JSON body.
+   * Transient and rate-limit errors are retried as allowed by the corp's {@link
+   * WechatWorkRetryPolicy}; any other errcode is returned to the caller.
+   *
+   * @param fields top-level response fields to keep, {@code null} to keep all of them
+   * @param params alternating parameter names and values
+   */
+  JsonNode get(String url, Set<String> fields, String... params) throws IOException {
+    return call(
+        url,
+        params,
+        maxResponseBytes,
+        in -> WechatWorkResponseDecoder.decode(in, fields, maxResponseBytes),
+        () -> true);
+  }
+
+  /**
+   * Like {@link #get}, but hands the elements of the top-level array {@code arrayField} to {@code
+   * elements} while the response is read, with no limit on the response size. A failed call is
+   * only retried when no element has been handed out yet.
+   *
+   * @param elementFields fields of each element to keep, {@code null} to keep whole elements
+   * @return the other top-level fields of the response
+   */
+  JsonNode stream(
+      String url,
+      String arrayField,
+      Set<String> elementFields,
+      Consumer<JsonNode> elements,
+      String... params)
+      throws IOException {
+    AtomicBoolean delivered = new AtomicBoolean();
+    return call(
+        url,
+        params,
+        Long.MAX_VALUE,
+        in ->
+            WechatWorkResponseDecoder.decodeArray(
+                in,
+                arrayField,
+                elementFields,
+                element -> {
+                  delivered.set(true);
+                  elements.accept(element);
+                }),
+        () -> !delivered.get());
+  }
+
+  private JsonNode call(
+      String url,
+      String[] params,
+      long maxBytes,
+      ResponseReader reader,
+      BooleanSupplier retryable)
+      throws IOException {
+    URI uri;
+    try {
+      URIBuilder builder = new URIBuilder(url);
+      for (int i = 0; i + 1 < params.length; i += 2) {
+        builder.addParameter(params[i], params[i + 1]);
+      }
+      uri = builder.build();
+    } catch (URISyntaxException e) {
+      throw new IOException("invalid WeCom API url " + url, e);
+    }
+
+    String api = apiName(url);
+    JsonNode result = null;
+    IOException failure = null;
+    for (int attempt = 0; ; attempt++) {
+      // 熔断拒绝的调用不消耗配额
+      policy.acquire(api, attempt);
+      try {
+        // 先排队等待配额，不占用并发名额；重试不等待，没有配额时返回上次的结果
+        limiter.acquire(api, attempt == 0 ? acquireTimeoutMillis : 0);
+        acquire(url);
+      } catch (WechatWorkRateLimitException e) {
+        policy.cancel();
+        if (attempt == 0) {
+          throw e;
+        }
+        logger.debugf("not retrying %s: %s", api, e.getMessage());
+        if (failure != null) {
+          throw failure;
+        }
+        return result;
+      } catch (RuntimeException e) {
+        policy.cancel();
+        throw e;
+      }
+      result = null;
+      failure = null;
+      WechatWorkErrcode outcome = WechatWorkErrcode.TRANSIENT;
+      try {
+        long start = System.nanoTime();
+        try {
+          result = execute(new HttpGet(uri), url, maxBytes, reader);
+          outcome = WechatWorkErrcode.of(result);
+          WechatWorkMetrics.recordErrcode(api, result.path("errcode").asInt());
+        } catch (IOException e) {
+          failure = e;
+        } finally {
+          policy.record(outcome);
+          WechatWorkMetrics.recordApiCall(api, System.nanoTime() - start);
+        }
+      } finally {
+        permits.release();
+      }
+
+      if (!retryable.getAsBoolean() || !policy.shouldRetry(outcome, attempt)) {
+        if (failure != null) {
+          throw failure;
+        }
+        return result;
+      }
+      logger.debugf("retrying %s after %s", api, failure != null ? failure : result);
+      WechatWorkMetrics.recordApiRetry(api, outcome);
+      policy.backoff(outcome, attempt);
+    }
+  }
+
+  private JsonNode execute(HttpGet request, String url, long maxBytes, ResponseReader reader)
+      throws IOException {
+    return httpClient.execute(
+        request,
+        response -> {
+          int status = response.getStatusLine().getStatusCode();
+          HttpEntity entity = response.getEntity();
+          if (status != HttpStatus.SC_OK || entity == null) {
+            throw new IOException("WeCom API " + url + " returned HTTP " + status);
+          }
+          if (entity.getContentLength() > maxBytes) {
+            throw new IOException("WeCom response exceeds " + maxBytes + " bytes");
+          }
+          try (InputStream in = entity.getContent()) {
+            return reader.read(in);
+          }
+        });
+  }
+
+  /** Metric name of a WeCom API url, e.g. {@code user/get}. */
+  private static String apiName(String url) {
+    int index = url.indexOf(CGI_BIN);
+    String api = index < 0 ? url : url.substring(index + CGI_BIN.length());
+    int query = api.indexOf('?');
+    return query < 0 ? api : api.substring(0, query);
+  }
+
+  private void acquire(String url) {
+    try {
+      if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw new IdentityBrokerException("too many concurrent requests to " + url);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IdentityBrokerException("interrupted while waiting for " + url, e);
+    }
+  }
+
+  /** Closes the client after {@link #RETIRE_DELAY_SECONDS}, no new calls can reach it. */
+  private void retire() {
+    retirements.schedule(this::close, RETIRE_DELAY_SECONDS, TimeUnit.SECONDS);
+  }
+
+  private void close() {
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      logger.warn("failed to close WeCom API client", e);
+    }
+  }
+
+  private interface ResponseReader {
+    JsonNode read(InputStream in) throws IOException;
+  }
+}
@@ -0,0 +1,17 @@
+package org.keycloak.social.wechat;
+
+import org.keycloak.broker.provider.IdentityBrokerException;
+
+/** A WeCom API call answered with a non-zero errcode. */
+class WechatWorkApiException extends IdentityBrokerException {
+  private final int errcode;
+
+  WechatWorkApiException(String api, int errcode, String errmsg) {
+    super("WeCom API " + api + " failed: " + errcode + " " + errmsg);
+    this.errcode = errcode;
+  }
+
+  int getErrcode() {
+    return errcode;
+  }
+}
@@ -0,0 +1,129 @@
+package org.keycloak.social.wechat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Coalesces duplicate OAuth callbacks carrying the same {@code code} and {@code state}.
+ *
+ * <p>Browsers inside the WeCom client may deliver a callback twice, through a double redirect, a
+ * prefetch or a repeated tap. A code can be exchanged only once, so the second {@code
+ * getuserinfo} call would fail. The userid resolved from a code is therefore kept for {@link
+ * #CODE_TTL_SECONDS}: concurrent callbacks on a node wait for the first one's {@code
+ * getuserinfo}, later ones reuse its result. The result is kept in Keycloak's replicated work
+ * cache whatever the token store, so duplicates reaching another node reuse it as well; only
+ * without Infinispan is it kept per node. Callbacks are only resolved after their state matched the browser's authentication session.
+ */
+final class WechatWorkAuthCodes {
+  private static final Logger logger = Logger.getLogger(WechatWorkAuthCodes.class);
+
+  private static final String CODE_CACHE_NAME = "wechat_work_auth_code";
+  private static final String CODE_CACHE_KEY = "wechat_work_auth_code";
+  // 重复回调通常在几秒内到达，code 本身的有效期为 5 分钟
+  private static final long CODE_TTL_SECONDS = 60;
+  // 等待同一 code 的第一次回调完成的最长时间
+  private static final long WAIT_SECONDS = 10;
+  // 本地缓存最多保存的 code 数量
+  private static final long MAX_LOCAL_CODES = 10000;
+
+  private static final ConcurrentMap<String, CompletableFuture<String>> resolutions =
+      new ConcurrentHashMap<>();
+
+  private WechatWorkAuthCodes() {}
+
+  /**
+   * Returns the userid of {@code code}, calling {@code resolver} only for the first callback of a
+   * {@code code} and {@code state}. Without a state the code is not tied to an authentication
+   * session, so it is always resolved and a reused code is rejected by WeCom.
+   */
+  static String resolve(
+      KeycloakSession session,
+      WechatWorkProviderConfig config,
+      String code,
+      String state,
+      Supplier<String> resolver) {
+    if (state == null) {
+      return resolver.get();
+    }
+    String key = CODE_CACHE_KEY + ":" + config.getTenantKey() + ":" + code + ":" + state;
+    Cache<String, String> cache = getCache(session);
+    String userId = cache.get(key);
+    if (userId != null) {
+      WechatWorkMetrics.recordDuplicateCallback();
+      logger.debugf("reusing userid of duplicate callback for %s", config.getAlias());
+      return userId;
+    }
+    CompletableFuture<String> flight = new CompletableFuture<>();
+    CompletableFuture<String> running = resolutions.putIfAbsent(key, flight);
+    if (running != null) {
+      WechatWorkMetrics.recordDuplicateCallback();
+      return await(running);
+    }
+    try {
+      userId = resolver.get();
+      if (userId != null) {
+        cache.put(key, userId, CODE_TTL_SECONDS, TimeUnit.SECONDS);
+      }
+      flight.complete(userId);
+      return userId;
+    } catch (WechatWorkApiException e) {
+      // code 已被使用时，集群中另一个节点可能刚刚完成了同一次回调
+      String resolved = cache.get(key);
+      if (resolved == null) {
+        flight.completeExceptionally(e);
+        throw e;
+      }
+      WechatWorkMetrics.recordDuplicateCallback();
+      flight.complete(resolved);
+      return resolved;
+    } catch (RuntimeException e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      resolutions.remove(key, flight);
+    }
+  }
+
+  private static String await(CompletableFuture<String> running) {
+    try {
+      return running.get(WAIT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IdentityBrokerException("interrupted while waiting for duplicate callback", e);
+    } catch (ExecutionException e) {
+      throw new IdentityBrokerException("duplicate callback failed", e.getCause());
+    } catch (TimeoutException e) {
+      throw new IdentityBrokerException("timed out waiting for duplicate callback", e);
+    }
+  }
+
+  private static Cache<String, String> getCache(KeycloakSession session) {
+    InfinispanConnectionProvider provider = session.getProvider(InfinispanConnectionProvider.class);
+    return provider == null
+        ? LocalCodes.cache
+        : provider.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+  }
+
+  /** Node-local cache of resolved codes, used without Infinispan. */
+  private static final class LocalCodes {
+    static final Cache<String, String> cache =
+        WechatWorkCaches.getOrCreate(
+            CODE_CACHE_NAME,
+            () -> {
+              ConfigurationBuilder builder = new ConfigurationBuilder();
+              builder.memory().maxCount(MAX_LOCAL_CODES);
+              return builder.build();
+            });
+  }
+}
@@ -0,0 +1,84 @@
+package org.keycloak.social.wechat;
+
+import org.keycloak.common.util.Encode;
+
+/**
+ * Authorization URLs of a provider config, with everything but {@code redirect_uri} and {@code
+ * state} encoded once.
+ *
+ * <p>Parameters keep the order WeCom documents, and values are encoded exactly like {@code
+ * UriBuilder.queryParam} did before, so the URLs are unchanged.
+ */
+final class WechatWorkAuthorizationUrls {
+  private final String inClientPrefix;
+  private final String inClientMiddle;
+  private final String qrCodePrefix;
+
+  private WechatWorkAuthorizationUrls(WechatWorkProviderConfig config) {
+    String appId = encode(config.getClientId());
+    // 企业微信内：appid、redirect_uri、response_type、scope、state，最后是 #wechat_redirect
+    this.inClientPrefix =
+        config.getAuthorizationUrl()
+            + '?'
+            + WechatWorkIdentityProvider.OAUTH2_PARAMETER_CLIENT_ID
+            + '='
+            + appId
+            + '&'
+            + WechatWorkIdentityProvider.OAUTH2_PARAMETER_REDIRECT_URI
+            + '=';
+    this.inClientMiddle =
+        '&'
+            + WechatWorkIdentityProvider.OAUTH2_PARAMETER_RESPONSE_TYPE
+            + '='
+            + WechatWorkIdentityProvider.DEFAULT_RESPONSE_TYPE
+            + '&'
+            + WechatWorkIdentityProvider.OAUTH2_PARAMETER_SCOPE
+            + '='
+            + encode(config.getDefaultScope())
+            + '&'
+            + WechatWorkIdentityProvider.OAUTH2_PARAMETER_STATE
+            + '=';
+    // 企业微信外扫码：appid、agentid、redirect_uri、state
+    this.qrCodePrefix =
+        config.getQrcodeAuthorizationUrl()
+            + '?'
+            + WechatWorkIdentityProvider.OAUTH2_PARAMETER_CLIENT_ID
+            + '='
+            + appId
+            + '&'
+            + WechatWorkIdentityProvider.OAUTH2_PARAMETER_AGENT_ID.toLowerCase()
+            + '='
+            + encode(config.getAgentId())
+            + '&'
+            + WechatWorkIdentityProvider.OAUTH2_PARAMETER_REDIRECT_URI
+            + '=';
+  }
+
+  static WechatWorkAuthorizationUrls of(WechatWorkProviderConfig config) {
+    return new WechatWorkAuthorizationUrls(config);
+  }
+
+  /** OAuth URL opened inside the WeCom client. */
+  String inClient(String redirectUri, String state) {
+    return inClientPrefix
+        + encode(redirectUri)
+        + inClientMiddle
+        + encode(state)
+        + '#'
+        + WechatWorkIdentityProvider.WEIXIN_REDIRECT_FRAGMENT;
+  }
+
+  /** QR code login URL for other browsers. */
+  String qrCode(String redirectUri, String state) {
+    return qrCodePrefix
+        + encode(redirectUri)
+        + '&'
+        + WechatWorkIdentityProvider.OAUTH2_PARAMETER_STATE
+        + '='
+        + encode(state);
+  }
+
+  private static String encode(String value) {
+    return value == null ? "" : Encode.encodeQueryParamSaveEncodings(value);
+  }
+}
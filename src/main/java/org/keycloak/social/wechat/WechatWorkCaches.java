@@ -0,0 +1,49 @@
+package org.keycloak.social.wechat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.manager.DefaultCacheManager;
+import org.jboss.logging.Logger;
+
+/** Node-local Infinispan caches used by the provider. */
+final class WechatWorkCaches {
+  private static final Logger logger = Logger.getLogger(WechatWorkCaches.class);
+
+  private static final DefaultCacheManager cacheManager = new DefaultCacheManager();
+  private static final ConcurrentMap<String, Cache<?, ?>> caches = new ConcurrentHashMap<>();
+
+  private WechatWorkCaches() {}
+
+  /** Returns the cache called {@code cacheName}, defining it with {@code config} on first use. */
+  @SuppressWarnings("unchecked")
+  static <K, V> Cache<K, V> getOrCreate(String cacheName, Supplier<Configuration> config) {
+    Cache<?, ?> cache = caches.get(cacheName);
+    if (cache != null) {
+      return (Cache<K, V>) cache;
+    }
+    return (Cache<K, V>) caches.computeIfAbsent(cacheName, name -> create(name, config.get()));
+  }
+
+  /** Returns the cache called {@code cacheName}, or {@code null} when it was never created. */
+  @SuppressWarnings("unchecked")
+  static <K, V> Cache<K, V> getIfPresent(String cacheName) {
+    return (Cache<K, V>) caches.get(cacheName);
+  }
+
+  private static <K, V> Cache<K, V> create(String cacheName, Configuration config) {
+    try {
+      if (cacheManager.getCacheConfiguration(cacheName) == null) {
+        cacheManager.defineConfiguration(cacheName, config);
+      }
+      Cache<K, V> cache = cacheManager.getCache(cacheName);
+      logger.info(cache);
+      return cache;
+    } catch (RuntimeException e) {
+      logger.errorf(e, "failed to create cache %s", cacheName);
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package org.keycloak.social.wechat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signature check and decryption of WeCom callback messages, compatible with the official {@code
+ * WXBizMsgCrypt}: the signature is the SHA-1 of the sorted token, timestamp, nonce and ciphertext,
+ * the ciphertext is AES-256-CBC with the EncodingAESKey and its first 16 bytes as IV.
+ *
+ * <p>See https://developer.work.weixin.qq.com/document/path/90968
+ */
+final class WechatWorkCallbackCrypto {
+  // 明文前的随机字节数和消息长度字段的字节数
+  private static final int RANDOM_LENGTH = 16;
+  private static final int LENGTH_FIELD = 4;
+  // 企业微信按 32 字节块做 PKCS#7 补位
+  private static final int BLOCK_SIZE = 32;
+
+  private final String token;
+  private final SecretKeySpec key;
+  private final IvParameterSpec iv;
+  private final String receiveId;
+
+  /**
+   * @param receiveId corp id the messages must be addressed to
+   * @throws IllegalArgumentException when {@code encodingAesKey} is not 43 base64 characters
+   */
+  WechatWorkCallbackCrypto(String token, String encodingAesKey, String receiveId) {
+    byte[] aesKey = Base64.getDecoder().decode(encodingAesKey.trim() + "=");
+    if (aesKey.length != 32) {
+      throw new IllegalArgumentException("EncodingAESKey must be 43 base64 characters");
+    }
+    this.token = token.trim();
+    this.key = new SecretKeySpec(aesKey, "AES");
+    this.iv = new IvParameterSpec(Arrays.copyOfRange(aesKey, 0, 16));
+    this.receiveId = receiveId;
+  }
+
+  /** Whether {@code signature} is the {@code msg_signature} of the given callback parameters. */
+  boolean verify(String signature, String timestamp, String nonce, String encrypted) {
+    if (signature == null || timestamp == null || nonce == null || encrypted == null) {
+      return false;
+    }
+    String[] parts = {token, timestamp, nonce, encrypted};
+    Arrays.sort(parts);
+    byte[] expected;
+    try {
+      byte[] hash =
+          MessageDigest.getInstance("SHA-1")
+              .digest(String.join("", parts).getBytes(StandardCharsets.UTF_8));
+      expected = hex(hash).getBytes(StandardCharsets.UTF_8);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    return MessageDigest.isEqual(
+        expected, signature.toLowerCase().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Decrypts a callback message.
+   *
+   * @throws IllegalArgumentException when {@code encrypted} is malformed, not padded with PKCS#7
+   *     or addressed to another corp
+   */
+  String decrypt(String encrypted) {
+    byte[] plain;
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+      cipher.init(Cipher.DECRYPT_MODE, key, iv);
+      plain = cipher.doFinal(Base64.getDecoder().decode(encrypted));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalArgumentException("cannot decrypt callback message", e);
+    }
+    int pad = plain.length == 0 ? 0 : plain[plain.length - 1] & 0xff;
+    if (pad < 1 || pad > BLOCK_SIZE || pad > plain.length) {
+      throw new IllegalArgumentException("invalid callback message padding");
+    }
+    int end = plain.length - pad;
+    for (int i = end; i < plain.length - 1; i++) {
+      if ((plain[i] & 0xff) != pad) {
+        throw new IllegalArgumentException("invalid callback message padding");
+      }
+    }
+    if (end < RANDOM_LENGTH + LENGTH_FIELD) {
+      throw new IllegalArgumentException("callback message too short");
+    }
+    int length = ByteBuffer.wrap(plain, RANDOM_LENGTH, LENGTH_FIELD).getInt();
+    int start = RANDOM_LENGTH + LENGTH_FIELD;
+    if (length < 0 || length > end - start) {
+      throw new IllegalArgumentException("invalid callback message length");
+    }
+    String from = new String(plain, start + length, end - start - length, StandardCharsets.UTF_8);
+    if (!from.equals(receiveId)) {
+      throw new IllegalArgumentException("callback message addressed to " + from);
+    }
+    return new String(plain, start, length, StandardCharsets.UTF_8);
+  }
+
+  private static String hex(byte[] hash) {
+    StringBuilder hex = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,49 @@
+package org.keycloak.social.wechat;
+
+/**
+ * Where a login request comes from, told by its {@code User-Agent} header.
+ *
+ * <p>The WeCom app identifies itself with {@code wxwork/<version>} on iOS, Android, Windows and
+ * macOS, {@code wxworklocal/<version>} in private deployments and {@code WeCom/<version>} in the
+ * international app. Matching ignores case and tolerates a missing header.
+ */
+enum WechatWorkClient {
+  /** The browser of the WeCom mobile app. */
+  WECOM_MOBILE,
+  /** The browser of the WeCom desktop app on Windows or macOS. */
+  WECOM_DESKTOP,
+  /** Any other browser, which logs in by scanning a QR code. */
+  BROWSER;
+
+  private static final String[] WECOM_TOKENS = {"wxwork", "wecom/"};
+  private static final String[] DESKTOP_TOKENS = {"windows", "macintosh", "mac os x"};
+  // iPad 等移动端 UA 也带有 Mac OS X，需先排除
+  private static final String[] MOBILE_TOKENS = {"iphone", "ipad", "android", "mobile"};
+
+  /** Classifies {@code userAgent}, which may be {@code null}. */
+  static WechatWorkClient of(String userAgent) {
+    if (userAgent == null || !containsAny(userAgent, WECOM_TOKENS)) {
+      return BROWSER;
+    }
+    if (containsAny(userAgent, DESKTOP_TOKENS) && !containsAny(userAgent, MOBILE_TOKENS)) {
+      return WECOM_DESKTOP;
+    }
+    return WECOM_MOBILE;
+  }
+
+  /** Whether the request comes from inside the WeCom app, which supports the in-client OAuth. */
+  boolean isWeCom() {
+    return this != BROWSER;
+  }
+
+  private static boolean containsAny(String value, String[] tokens) {
+    for (String token : tokens) {
+      for (int i = 0; i + token.length() <= value.length(); i++) {
+        if (value.regionMatches(true, i, token, 0, token.length())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,204 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Applies WeCom contact change events ({@code change_contact}) to the linked Keycloak users.
+ *
+ * <p>{@code update_user} carries only the fields that changed. They are converted to their {@code
+ * user/get} names and written through the provider's profile mapping, so the user ends up with the
+ * values the next login would write. When a changed field feeds a value that also depends on
+ * fields not in the event, the user's sync time is cleared and the next login fetches the full
+ * profile. A changed {@code Department} also moves the user between the groups of the department
+ * group mappers. A {@code delete_user} disables the user, a later {@code create_user} of the same
+ * userid enables it again. Members that are not linked yet are left to their first login or the
+ * directory sync. Every member event drops the member's cached {@code user/get} response.
+ * Department events update the {@link WechatWorkDepartmentTree}.
+ *
+ * <p>See https://developer.work.weixin.qq.com/document/path/90970
+ */
+final class WechatWorkContactEvents {
+  private static final Logger logger = Logger.getLogger(WechatWorkContactEvents.class);
+
+  static final String CREATE_USER = "create_user";
+  static final String UPDATE_USER = "update_user";
+  static final String DELETE_USER = "delete_user";
+  // 成员在企业微信中被删除的时间（毫秒），区别于管理员手动禁用
+  static final String DELETED_AT = "wechat_work_deleted_at";
+
+  // 事件 XML 元素名到 user/get 字段名的对应关系
+  private static final Map<String, String> PROFILE_FIELDS = new HashMap<>();
+  // 不属于成员资料的事件元素
+  private static final Set<String> ENVELOPE =
+      Collections.unmodifiableSet(
+          new HashSet<>(
+              Arrays.asList(
+                  "ToUserName",
+                  "FromUserName",
+                  "CreateTime",
+                  "MsgType",
+                  "Event",
+                  "ChangeType",
+                  "UserID",
+                  "NewUserID")));
+
+  static {
+    PROFILE_FIELDS.put("Name", "name");
+    PROFILE_FIELDS.put("Department", "department");
+    PROFILE_FIELDS.put("MainDepartment", "main_department");
+    PROFILE_FIELDS.put("IsLeaderInDept", "is_leader_in_dept");
+    PROFILE_FIELDS.put("DirectLeader", "direct_leader");
+    PROFILE_FIELDS.put("Position", "position");
+    PROFILE_FIELDS.put("Mobile", "mobile");
+    PROFILE_FIELDS.put("Gender", "gender");
+    PROFILE_FIELDS.put("Email", "email");
+    PROFILE_FIELDS.put("BizMail", "biz_mail");
+    PROFILE_FIELDS.put("Status", "status");
+    PROFILE_FIELDS.put("Avatar", "avatar");
+    PROFILE_FIELDS.put("Alias", "alias");
+    PROFILE_FIELDS.put("Telephone", "telephone");
+    PROFILE_FIELDS.put("Address", "address");
+  }
+
+  private WechatWorkContactEvents() {}
+
+  /**
+   * Applies one decrypted event, given as the text of its top-level XML elements. Events other
+   * than member changes are ignored.
+   */
+  static void apply(
+      KeycloakSession session,
+      RealmModel realm,
+      WechatWorkProviderConfig config,
+      Map<String, String> event) {
+    if (!"event".equals(event.get("MsgType")) || !"change_contact".equals(event.get("Event"))) {
+      logger.debugf("ignoring WeCom callback %s/%s", event.get("MsgType"), event.get("Event"));
+      return;
+    }
+    String changeType = event.get("ChangeType");
+    String userId = event.get("UserID");
+    if (WechatWorkDepartmentTree.CREATE_PARTY.equals(changeType)
+        || WechatWorkDepartmentTree.UPDATE_PARTY.equals(changeType)
+        || WechatWorkDepartmentTree.DELETE_PARTY.equals(changeType)) {
+      WechatWorkMetrics.recordContactEvent(changeType);
+      WechatWorkDepartmentTree.of(config).apply(session, changeType, event);
+      return;
+    }
+    if (!CREATE_USER.equals(changeType)
+        && !UPDATE_USER.equals(changeType)
+        && !DELETE_USER.equals(changeType)) {
+      // 标签变更不影响成员资料
+      WechatWorkMetrics.recordContactEvent("other");
+      logger.debugf("ignoring WeCom contact change %s", changeType);
+      return;
+    }
+    WechatWorkMetrics.recordContactEvent(changeType);
+    if (userId == null || userId.isEmpty()) {
+      return;
+    }
+    WechatWorkProfileCache.invalidate(session, config, userId);
+
+    UserModel user =
+        session
+            .users()
+            .getUserByFederatedIdentity(
+                realm, new FederatedIdentityModel(config.getAlias(), userId, null));
+    if (user == null) {
+      logger.debugf("WeCom member %s is not linked, ignoring %s", userId, changeType);
+      return;
+    }
+    if (DELETE_USER.equals(changeType)) {
+      user.setEnabled(false);
+      user.setSingleAttribute(DELETED_AT, String.valueOf(Time.currentTimeMillis()));
+      user.removeAttribute(WechatWorkIdentityProvider.PROFILE_SYNCED_AT);
+      return;
+    }
+    if (user.getFirstAttribute(DELETED_AT) != null) {
+      user.removeAttribute(DELETED_AT);
+      user.setEnabled(true);
+    }
+
+    String newUserId = event.get("NewUserID");
+    boolean renamed = newUserId != null && !newUserId.isEmpty() && !newUserId.equals(userId);
+    ObjectNode changes = JsonNodeFactory.instance.objectNode();
+    changes.put(WechatWorkProfileMapping.ID_FIELD, renamed ? newUserId : userId);
+    boolean complete = true;
+    for (Map.Entry<String, String> element : event.entrySet()) {
+      String field = PROFILE_FIELDS.get(element.getKey());
+      if (field != null) {
+        changes.put(field, element.getValue());
+      } else if (!ENVELOPE.contains(element.getKey())) {
+        // 如 ExtAttr 等结构与 user/get 不同的字段，交由下次登录重新获取
+        complete = false;
+      }
+    }
+    complete &= WechatWorkUserUpdates.applyChanges(user, changes, config.getProfileMapping());
+    if (!complete) {
+      user.removeAttribute(WechatWorkIdentityProvider.PROFILE_SYNCED_AT);
+    }
+    String departments = event.get("Department");
+    if (departments != null) {
+      updateGroups(session, realm, config, user, departments);
+    }
+    if (renamed) {
+      relink(session, realm, config, user, newUserId);
+    }
+  }
+
+  /** Runs the department group mappers of the provider for a member's new departments. */
+  private static void updateGroups(
+      KeycloakSession session,
+      RealmModel realm,
+      WechatWorkProviderConfig config,
+      UserModel user,
+      String departments) {
+    List<String> departmentIds = new ArrayList<>();
+    for (String department : departments.split(",")) {
+      if (!department.trim().isEmpty()) {
+        departmentIds.add(department.trim());
+      }
+    }
+    realm
+        .getIdentityProviderMappersByAliasStream(config.getAlias())
+        .filter(
+            mapper ->
+                WechatWorkDepartmentGroupMapper.PROVIDER_ID.equals(
+                    mapper.getIdentityProviderMapper()))
+        .forEach(
+            mapper ->
+                WechatWorkDepartmentGroupMapper.updateGroups(
+                    session, realm, user, mapper, config, departmentIds));
+  }
+
+  /** Moves the link of {@code user} to the member's new userid. */
+  private static void relink(
+      KeycloakSession session,
+      RealmModel realm,
+      WechatWorkProviderConfig config,
+      UserModel user,
+      String newUserId) {
+    session.users().removeFederatedIdentity(realm, user, config.getAlias());
+    session
+        .users()
+        .addFederatedIdentity(
+            realm,
+            user,
+            new FederatedIdentityModel(config.getAlias(), newUserId, user.getUsername()));
+    WechatWorkProfileCache.invalidate(session, config, newUserId);
+  }
+}
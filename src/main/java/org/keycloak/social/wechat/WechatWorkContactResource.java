@@ -0,0 +1,235 @@
+package org.keycloak.social.wechat;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.social.SocialIdentityProvider;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Receiver of WeCom contact change callbacks, next to the OAuth {@link Endpoint}.
+ *
+ * <p>Set {@code /realms/{realm}/wechat-work/{alias}/contact} as the URL of the "receive events"
+ * server in the WeCom admin console, with the token and EncodingAESKey configured on the identity
+ * provider. WeCom checks the URL with a signed {@code GET} and posts every contact change as
+ * encrypted XML; both are verified against the token before anything is decrypted, and the
+ * decrypted events are applied by {@link WechatWorkContactEvents}. Events must be signed within
+ * {@link #MAX_CLOCK_SKEW_SECONDS} of now, and each {@code timestamp} and {@code nonce} is recorded
+ * in Keycloak's work cache for that window, so a captured event cannot be replayed.
+ */
+public class WechatWorkContactResource implements RealmResourceProvider {
+  private static final Logger logger = Logger.getLogger(WechatWorkContactResource.class);
+
+  // 回调时间戳与本机时间的最大偏差，超出视为重放
+  private static final long MAX_CLOCK_SKEW_SECONDS = 300;
+  private static final String NONCE_CACHE_KEY = "wechat_work_callback_nonce";
+  private static final String NONCE_CACHE_NAME = "wechat_work_callback_nonce";
+  // 未接入集群时本地最多记录的 nonce 数量
+  private static final long MAX_LOCAL_NONCES = 10000;
+
+  private final KeycloakSession session;
+
+  public WechatWorkContactResource(KeycloakSession session) {
+    this.session = session;
+  }
+
+  @Override
+  public Object getResource() {
+    return this;
+  }
+
+  /** URL check done by WeCom when the callback is saved: answers the decrypted {@code echostr}. */
+  @GET
+  @Path("{alias}/contact")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response verifyUrl(
+      @PathParam("alias") String alias,
+      @QueryParam("msg_signature") String signature,
+      @QueryParam("timestamp") String timestamp,
+      @QueryParam("nonce") String nonce,
+      @QueryParam("echostr") String echo) {
+    WechatWorkProviderConfig config = getConfig(alias);
+    WechatWorkCallbackCrypto crypto = crypto(config);
+    if (!crypto.verify(signature, timestamp, nonce, echo)) {
+      return Response.status(Response.Status.FORBIDDEN).build();
+    }
+    try {
+      return Response.ok(crypto.decrypt(echo)).build();
+    } catch (IllegalArgumentException e) {
+      logger.warnf("invalid WeCom callback check for %s: %s", alias, e.getMessage());
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+  }
+
+  /** Receives one contact change event. */
+  @POST
+  @Path("{alias}/contact")
+  public Response receive(
+      @PathParam("alias") String alias,
+      @QueryParam("msg_signature") String signature,
+      @QueryParam("timestamp") String timestamp,
+      @QueryParam("nonce") String nonce,
+      String body) {
+    WechatWorkProviderConfig config = getConfig(alias);
+    WechatWorkCallbackCrypto crypto = crypto(config);
+    Map<String, String> event;
+    try {
+      String encrypted = parseXml(body).get("Encrypt");
+      if (!crypto.verify(signature, timestamp, nonce, encrypted) || !isFresh(timestamp)) {
+        return Response.status(Response.Status.FORBIDDEN).build();
+      }
+      event = parseXml(crypto.decrypt(encrypted));
+    } catch (IllegalArgumentException e) {
+      logger.warnf("invalid WeCom callback for %s: %s", alias, e.getMessage());
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+    RealmModel realm = session.getContext().getRealm();
+    String nonceKey =
+        NONCE_CACHE_KEY + ":" + realm.getId() + ":" + alias + ":" + timestamp + ":" + nonce;
+    Cache<String, String> nonces = getNonceCache();
+    if (nonces.putIfAbsent(nonceKey, timestamp, 2 * MAX_CLOCK_SKEW_SECONDS, TimeUnit.SECONDS)
+        != null) {
+      logger.warnf("rejecting replayed WeCom callback for %s", alias);
+      return Response.status(Response.Status.FORBIDDEN).build();
+    }
+    logger.debugf("WeCom callback for %s: %s", alias, event);
+    try {
+      WechatWorkContactEvents.apply(session, realm, config, event);
+    } catch (RuntimeException e) {
+      // 未生效的事件由企业微信重试，不能被当作重放拒绝
+      nonces.remove(nonceKey);
+      throw e;
+    }
+    // 企业微信只要求 5 秒内返回 200，无需回复内容
+    return Response.ok().build();
+  }
+
+  @Override
+  public void close() {}
+
+  private WechatWorkProviderConfig getConfig(String alias) {
+    RealmModel realm = session.getContext().getRealm();
+    IdentityProviderModel model = realm.getIdentityProviderByAlias(alias);
+    if (model == null
+        || !WechatWorkIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())) {
+      throw new NotFoundException();
+    }
+    ProviderFactory<?> factory =
+        session
+            .getKeycloakSessionFactory()
+            .getProviderFactory(
+                SocialIdentityProvider.class, WechatWorkIdentityProviderFactory.PROVIDER_ID);
+    WechatWorkProviderConfig config =
+        factory instanceof WechatWorkIdentityProviderFactory
+            ? ((WechatWorkIdentityProviderFactory) factory).getConfig(model)
+            : new WechatWorkProviderConfig(model);
+    if (!config.isContactCallbackEnabled()) {
+      throw new NotFoundException();
+    }
+    return config;
+  }
+
+  private static WechatWorkCallbackCrypto crypto(WechatWorkProviderConfig config) {
+    try {
+      return new WechatWorkCallbackCrypto(
+          config.getContactCallbackToken(),
+          config.getContactCallbackAesKey(),
+          config.getClientId());
+    } catch (IllegalArgumentException e) {
+      logger.warnf("invalid EncodingAESKey on %s: %s", config.getAlias(), e.getMessage());
+      throw new NotFoundException();
+    }
+  }
+
+  /** Keycloak's replicated work cache, or a node-local cache when it is unavailable. */
+  private Cache<String, String> getNonceCache() {
+    InfinispanConnectionProvider provider = session.getProvider(InfinispanConnectionProvider.class);
+    if (provider != null) {
+      return provider.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+    }
+    return LocalNonces.cache;
+  }
+
+  private static boolean isFresh(String timestamp) {
+    try {
+      return Math.abs(Time.currentTime() - Long.parseLong(timestamp)) <= MAX_CLOCK_SKEW_SECONDS;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the text of the top-level elements of a WeCom XML message.
+   *
+   * @throws IllegalArgumentException when {@code xml} is not well-formed or has a DOCTYPE
+   */
+  static Map<String, String> parseXml(String xml) {
+    if (xml == null) {
+      throw new IllegalArgumentException("empty callback message");
+    }
+    Document document;
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      // 回调内容来自外部，禁止 DTD 和外部实体
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+      factory.setExpandEntityReferences(false);
+      DocumentBuilder builder = factory.newDocumentBuilder();
+      builder.setErrorHandler(null);
+      document = builder.parse(new InputSource(new StringReader(xml)));
+    } catch (ParserConfigurationException e) {
+      throw new IllegalStateException(e);
+    } catch (SAXException | IOException e) {
+      throw new IllegalArgumentException("malformed callback message", e);
+    }
+    Map<String, String> elements = new HashMap<>();
+    for (Node node = document.getDocumentElement().getFirstChild();
+        node != null;
+        node = node.getNextSibling()) {
+      if (node.getNodeType() == Node.ELEMENT_NODE) {
+        elements.put(node.getNodeName(), node.getTextContent().trim());
+      }
+    }
+    return elements;
+  }
+
+  /** Node-local nonces, used without Keycloak's work cache. */
+  private static final class LocalNonces {
+    static final Cache<String, String> cache =
+        WechatWorkCaches.getOrCreate(
+            NONCE_CACHE_NAME,
+            () -> {
+              ConfigurationBuilder builder = new ConfigurationBuilder();
+              builder.memory().maxCount(MAX_LOCAL_NONCES);
+              return builder.build();
+            });
+  }
+}
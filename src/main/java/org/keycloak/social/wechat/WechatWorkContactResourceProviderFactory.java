@@ -0,0 +1,30 @@
+package org.keycloak.social.wechat;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/** Mounts {@link WechatWorkContactResource} at {@code /realms/{realm}/wechat-work}. */
+public class WechatWorkContactResourceProviderFactory implements RealmResourceProviderFactory {
+
+  @Override
+  public RealmResourceProvider create(KeycloakSession session) {
+    return new WechatWorkContactResource(session);
+  }
+
+  @Override
+  public void init(Config.Scope config) {}
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {}
+
+  @Override
+  public void close() {}
+
+  @Override
+  public String getId() {
+    return WechatWorkIdentityProviderFactory.PROVIDER_ID;
+  }
+}
@@ -0,0 +1,243 @@
+package org.keycloak.social.wechat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderSyncMode;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+
+/**
+ * Mirrors the WeCom departments of a member as memberships of groups below a parent group.
+ *
+ * <p>Each department in the {@code department} array of the {@code user/get} profile maps to the
+ * group at the path of its department names below the parent group, resolved locally through the
+ * corp's {@link WechatWorkDepartmentTree}. Memberships of other groups below the parent group are
+ * removed, groups outside of it are left alone, and nothing is written when the memberships are
+ * already right. Memberships follow the departments on every login whatever the sync mode of the
+ * identity provider, and on contact change callbacks that move the member. Logins that skip
+ * {@code user/get} through lazy enrichment keep the current memberships.
+ */
+public class WechatWorkDepartmentGroupMapper extends AbstractIdentityProviderMapper {
+  private static final Logger logger = Logger.getLogger(WechatWorkDepartmentGroupMapper.class);
+
+  public static final String PROVIDER_ID = "wechat-work-department-group-mapper";
+  public static final String PARENT_GROUP = "group";
+  public static final String CREATE_GROUPS = "createGroups";
+
+  private static final String[] cp = new String[] {WechatWorkIdentityProviderFactory.PROVIDER_ID};
+
+  private static final Set<IdentityProviderSyncMode> IDENTITY_PROVIDER_SYNC_MODES =
+      new HashSet<>(Arrays.asList(IdentityProviderSyncMode.values()));
+
+  @Override
+  public String[] getCompatibleProviders() {
+    return cp;
+  }
+
+  @Override
+  public boolean supportsSyncMode(IdentityProviderSyncMode syncMode) {
+    return IDENTITY_PROVIDER_SYNC_MODES.contains(syncMode);
+  }
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+
+  @Override
+  public String getDisplayCategory() {
+    return "Group Importer";
+  }
+
+  @Override
+  public String getDisplayType() {
+    return "企业微信部门映射到群组";
+  }
+
+  @Override
+  public String getHelpText() {
+    return "把成员所在的企业微信部门映射为上级群组下同名路径的群组成员关系";
+  }
+
+  @Override
+  public List<ProviderConfigProperty> getConfigProperties() {
+    return ProviderConfigurationBuilder.create()
+        .property()
+        .name(PARENT_GROUP)
+        .label("上级群组")
+        .helpText("部门群组所在的上级群组；该群组下不属于成员部门的成员关系会被移除")
+        .type(ProviderConfigProperty.GROUP_TYPE)
+        .add()
+        .property()
+        .name(CREATE_GROUPS)
+        .label("自动创建群组")
+        .helpText("部门对应的群组不存在时自动创建，否则忽略该部门")
+        .type(ProviderConfigProperty.BOOLEAN_TYPE)
+        .defaultValue("true")
+        .add()
+        .build();
+  }
+
+  @Override
+  public void importNewUser(
+      KeycloakSession session,
+      RealmModel realm,
+      UserModel user,
+      IdentityProviderMapperModel mapperModel,
+      BrokeredIdentityContext context) {
+    updateGroups(session, realm, user, mapperModel, context);
+  }
+
+  @Override
+  public void updateBrokeredUserLegacy(
+      KeycloakSession session,
+      RealmModel realm,
+      UserModel user,
+      IdentityProviderMapperModel mapperModel,
+      BrokeredIdentityContext context) {
+    updateGroups(session, realm, user, mapperModel, context);
+  }
+
+  @Override
+  public void updateBrokeredUser(
+      KeycloakSession session,
+      RealmModel realm,
+      UserModel user,
+      IdentityProviderMapperModel mapperModel,
+      BrokeredIdentityContext context) {
+    updateGroups(session, realm, user, mapperModel, context);
+  }
+
+  private void updateGroups(
+      KeycloakSession session,
+      RealmModel realm,
+      UserModel user,
+      IdentityProviderMapperModel mapperModel,
+      BrokeredIdentityContext context) {
+    Object departments =
+        context.getContextData().get(WechatWorkIdentityProvider.CONTEXT_DEPARTMENTS);
+    if (!(departments instanceof List)
+        || !(context.getIdpConfig() instanceof WechatWorkProviderConfig)) {
+      // 未获取成员详情（如懒加载登录），保持现有成员关系
+      return;
+    }
+    updateGroups(
+        session,
+        realm,
+        user,
+        mapperModel,
+        (WechatWorkProviderConfig) context.getIdpConfig(),
+        (List<?>) departments);
+  }
+
+  /**
+   * Moves {@code user} into the groups of {@code departments} below the parent group of {@code
+   * mapperModel}, as a login would. Used by contact change callbacks that move a member.
+   */
+  static void updateGroups(
+      KeycloakSession session,
+      RealmModel realm,
+      UserModel user,
+      IdentityProviderMapperModel mapperModel,
+      WechatWorkProviderConfig config,
+      List<?> departments) {
+    String parentPath = mapperModel.getConfig().get(PARENT_GROUP);
+    GroupModel parent =
+        parentPath == null ? null : KeycloakModelUtils.findGroupByPath(session, realm, parentPath);
+    if (parent == null) {
+      logger.warnf("parent group %s of mapper %s not found", parentPath, mapperModel.getName());
+      return;
+    }
+    boolean create = !"false".equals(mapperModel.getConfig().get(CREATE_GROUPS));
+    WechatWorkDepartmentTree tree = WechatWorkDepartmentTree.of(config);
+
+    Map<String, GroupModel> wanted = new HashMap<>();
+    for (Object department : departments) {
+      GroupModel group = resolve(session, realm, tree, parent, String.valueOf(department), create);
+      if (group != null) {
+        wanted.put(group.getId(), group);
+      }
+    }
+    Map<String, GroupModel> current = new HashMap<>();
+    user.getGroupsStream()
+        .filter(group -> isBelow(group, parent))
+        .forEach(group -> current.put(group.getId(), group));
+    if (wanted.keySet().equals(current.keySet())) {
+      return;
+    }
+    for (GroupModel group : current.values()) {
+      if (!wanted.containsKey(group.getId())) {
+        user.leaveGroup(group);
+      }
+    }
+    for (GroupModel group : wanted.values()) {
+      if (!current.containsKey(group.getId())) {
+        user.joinGroup(group);
+      }
+    }
+  }
+
+  /** Returns the group of {@code departmentId} below {@code parent}, or {@code null}. */
+  private static GroupModel resolve(
+      KeycloakSession session,
+      RealmModel realm,
+      WechatWorkDepartmentTree tree,
+      GroupModel parent,
+      String departmentId,
+      boolean create) {
+    List<String> path = tree.getPath(session, departmentId);
+    if (path == null) {
+      logger.debugf("unknown WeCom department %s", departmentId);
+      return null;
+    }
+    Map<String, String> resolved = tree.getResolved();
+    String key = realm.getId() + ":" + parent.getId() + ":" + departmentId;
+    String groupId = resolved.get(key);
+    GroupModel group = groupId == null ? null : session.groups().getGroupById(realm, groupId);
+    if (group != null) {
+      return group;
+    }
+    group = parent;
+    for (String name : path) {
+      GroupModel parentGroup = group;
+      group =
+          parentGroup
+              .getSubGroupsStream()
+              .filter(subGroup -> name.equals(subGroup.getName()))
+              .findFirst()
+              .orElse(null);
+      if (group == null) {
+        if (!create) {
+          return null;
+        }
+        group = session.groups().createGroup(realm, name, parentGroup);
+      }
+    }
+    resolved.put(key, group.getId());
+    return group;
+  }
+
+  private static boolean isBelow(GroupModel group, GroupModel parent) {
+    for (GroupModel ancestor = group.getParent();
+        ancestor != null;
+        ancestor = ancestor.getParent()) {
+      if (ancestor.getId().equals(parent.getId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,303 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * In-memory index of the department tree of a corp, resolving the {@code department} ids of a
+ * profile to the names of the departments on their path without calling WeCom on every login.
+ *
+ * <p>The tree is loaded with a single {@code department/list} call on first use and reloaded after
+ * an hour, or earlier when a profile refers to a department it does not know. In between,
+ * department changes pushed by the contact change callback are applied in place on every node of
+ * the cluster. Departments whose name the app may not read are named by their id.
+ */
+final class WechatWorkDepartmentTree {
+  private static final Logger logger = Logger.getLogger(WechatWorkDepartmentTree.class);
+
+  static final String CREATE_PARTY = "create_party";
+  static final String UPDATE_PARTY = "update_party";
+  static final String DELETE_PARTY = "delete_party";
+
+  private static final String ACCESS_TOKEN_KEY = "access_token";
+  private static final String CHANGE_TASK = "wechat_work_department_change";
+  private static final Set<String> DEPARTMENT_FIELDS =
+      Collections.unmodifiableSet(new HashSet<>(Arrays.asList("id", "name", "parentid")));
+  // 完整重新加载部门树的间隔
+  private static final long RELOAD_SECONDS = 3600;
+  // 遇到未知部门时，两次重新加载之间的最短间隔
+  private static final long MIN_RELOAD_SECONDS = 60;
+  // 部门层级上限，防止数据异常时出现环
+  private static final int MAX_DEPTH = 64;
+
+  private static final ConcurrentMap<String, WechatWorkDepartmentTree> trees =
+      new ConcurrentHashMap<>();
+
+  private final WechatWorkProviderConfig config;
+  private final ReentrantLock lock = new ReentrantLock();
+  private volatile Snapshot snapshot;
+
+  private WechatWorkDepartmentTree(WechatWorkProviderConfig config) {
+    this.config = config;
+  }
+
+  /** Returns the tree of the corp of {@code config}, which is loaded on first use. */
+  static WechatWorkDepartmentTree of(WechatWorkProviderConfig config) {
+    return trees.computeIfAbsent(config.getTenantKey(), k -> new WechatWorkDepartmentTree(config));
+  }
+
+  /** Forgets the tree of the corp of {@code config}, after its credentials changed. */
+  static void evict(WechatWorkProviderConfig config) {
+    trees.remove(config.getTenantKey());
+  }
+
+  /**
+   * Returns the department names from the top of the tree down to {@code departmentId}, or {@code
+   * null} when WeCom does not know the department.
+   */
+  List<String> getPath(KeycloakSession session, String departmentId) {
+    Snapshot current = load(session, departmentId);
+    Department department = current.departments.get(departmentId);
+    if (department == null) {
+      return null;
+    }
+    List<String> path = new ArrayList<>();
+    while (department != null && path.size() < MAX_DEPTH) {
+      path.add(department.name);
+      department = current.departments.get(department.parentId);
+    }
+    Collections.reverse(path);
+    return path;
+  }
+
+  /**
+   * Memo of values derived from the current tree, such as the group a department resolves to.
+   * It is replaced whenever the tree changes.
+   */
+  Map<String, String> getResolved() {
+    Snapshot current = snapshot;
+    return current == null ? new HashMap<>() : current.resolved;
+  }
+
+  /**
+   * Applies a department change event of the contact change callback to this node's tree and
+   * sends it to the other nodes of the cluster.
+   */
+  void apply(KeycloakSession session, String changeType, Map<String, String> event) {
+    DepartmentChange change =
+        new DepartmentChange(
+            config.getTenantKey(),
+            changeType,
+            event.get("Id"),
+            event.get("ParentId"),
+            event.get("Name"));
+    change.apply(this);
+    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    if (cluster != null) {
+      cluster.notify(CHANGE_TASK, change, true, ClusterProvider.DCNotify.ALL_DCS);
+    }
+  }
+
+  /** Starts applying department changes sent by other nodes, once Keycloak has started. */
+  static void listen(KeycloakSessionFactory factory) {
+    KeycloakModelUtils.runJobInTransaction(
+        factory,
+        session -> {
+          ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+          if (cluster != null) {
+            cluster.registerListener(
+                CHANGE_TASK,
+                event -> {
+                  if (event instanceof DepartmentChange) {
+                    DepartmentChange change = (DepartmentChange) event;
+                    WechatWorkDepartmentTree tree = trees.get(change.tenantKey);
+                    if (tree != null) {
+                      change.apply(tree);
+                    }
+                  }
+                });
+          }
+        });
+  }
+
+  /** Returns the current tree, (re)loading it when missing, expired or lacking {@code wanted}. */
+  private Snapshot load(KeycloakSession session, String wanted) {
+    Snapshot current = snapshot;
+    if (current != null && !current.isStale(wanted)) {
+      return current;
+    }
+    if (current == null) {
+      lock.lock();
+    } else if (!lock.tryLock()) {
+      // 其它线程正在重新加载，先使用旧的部门树
+      return current;
+    }
+    try {
+      current = snapshot;
+      if (current != null && !current.isStale(wanted)) {
+        return current;
+      }
+      long now = Time.currentTimeMillis();
+      try {
+        snapshot = new Snapshot(fetch(session), now, now);
+      } catch (RuntimeException e) {
+        if (current == null) {
+          throw e;
+        }
+        // 重新加载失败时继续使用旧的部门树，稍后再试
+        logger.warnf("reloading WeCom departments of %s failed: %s", config.getAlias(), e);
+        snapshot = new Snapshot(current.departments, current.loadedAt, now);
+      }
+      return snapshot;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Map<String, Department> fetch(KeycloakSession session) {
+    Map<String, Department> departments = new HashMap<>();
+    WechatWorkApiClient client = WechatWorkApiClient.get(config);
+    String url = config.getApiUrl(WechatWorkIdentityProvider.DEPARTMENT_TREE_PATH);
+    String accessToken = WechatWorkTokenManager.getAccessToken(session, config);
+    try {
+      JsonNode result =
+          client.stream(
+              url,
+              "department",
+              DEPARTMENT_FIELDS,
+              node -> put(departments, node),
+              ACCESS_TOKEN_KEY,
+              accessToken);
+      if (WechatWorkErrcode.of(result) == WechatWorkErrcode.TOKEN) {
+        String renewed = WechatWorkTokenManager.resetAccessToken(session, config, accessToken);
+        result =
+            client.stream(
+                url,
+                "department",
+                DEPARTMENT_FIELDS,
+                node -> put(departments, node),
+                ACCESS_TOKEN_KEY,
+                renewed);
+      }
+      int errcode = result.path("errcode").asInt();
+      if (errcode != 0) {
+        throw new WechatWorkApiException(
+            WechatWorkIdentityProvider.DEPARTMENT_TREE_PATH,
+            errcode,
+            result.path("errmsg").asText());
+      }
+    } catch (IOException e) {
+      throw new IdentityBrokerException("Could not load WeCom departments", e);
+    }
+    logger.debugf("loaded %d WeCom departments of %s", departments.size(), config.getAlias());
+    return departments;
+  }
+
+  private static void put(Map<String, Department> departments, JsonNode node) {
+    String id = node.path("id").asText();
+    // 2022 年后创建的自建应用读取不到部门名称
+    String name = node.path("name").asText();
+    departments.put(id, new Department(node.path("parentid").asText(), name.isEmpty() ? id : name));
+  }
+
+  /** Immutable state of the tree, swapped as a whole. */
+  private static final class Snapshot {
+    private final Map<String, Department> departments;
+    private final long loadedAt;
+    private final long attemptedAt;
+    private final Map<String, String> resolved = new ConcurrentHashMap<>();
+
+    Snapshot(Map<String, Department> departments, long loadedAt, long attemptedAt) {
+      this.departments = departments;
+      this.loadedAt = loadedAt;
+      this.attemptedAt = attemptedAt;
+    }
+
+    boolean isStale(String wanted) {
+      long now = Time.currentTimeMillis();
+      if (now - attemptedAt < MIN_RELOAD_SECONDS * 1000) {
+        return false;
+      }
+      return now - loadedAt >= RELOAD_SECONDS * 1000
+          || (wanted != null && !departments.containsKey(wanted));
+    }
+  }
+
+  private static final class Department {
+    private final String parentId;
+    private final String name;
+
+    Department(String parentId, String name) {
+      this.parentId = parentId;
+      this.name = name;
+    }
+  }
+
+  /** Cluster event carrying one department change of the contact change callback. */
+  static final class DepartmentChange implements ClusterEvent {
+    private static final long serialVersionUID = 1L;
+
+    private final String tenantKey;
+    private final String changeType;
+    private final String id;
+    private final String parentId;
+    private final String name;
+
+    DepartmentChange(
+        String tenantKey, String changeType, String id, String parentId, String name) {
+      this.tenantKey = tenantKey;
+      this.changeType = changeType;
+      this.id = id;
+      this.parentId = parentId;
+      this.name = name;
+    }
+
+    void apply(WechatWorkDepartmentTree tree) {
+      tree.lock.lock();
+      try {
+        apply(tree, tree.snapshot);
+      } finally {
+        tree.lock.unlock();
+      }
+    }
+
+    private void apply(WechatWorkDepartmentTree tree, Snapshot current) {
+      if (current == null || id == null) {
+        // 尚未加载的部门树在首次使用时会取到最新数据
+        return;
+      }
+      Map<String, Department> departments = new HashMap<>(current.departments);
+      Department previous = departments.get(id);
+      if (DELETE_PARTY.equals(changeType)) {
+        departments.remove(id);
+      } else if (CREATE_PARTY.equals(changeType) || previous != null) {
+        // update_party 只携带变化的字段
+        departments.put(
+            id,
+            new Department(
+                parentId != null ? parentId : previous != null ? previous.parentId : "",
+                name != null ? name : previous != null ? previous.name : id));
+      }
+      tree.snapshot = new Snapshot(departments, current.loadedAt, current.attemptedAt);
+    }
+  }
+}
@@ -0,0 +1,592 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.infinispan.Cache;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTaskWithResult;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Directory sync creating a linked Keycloak user for every WeCom member ahead of the first login,
+ * which then only looks the user up instead of provisioning it.
+ *
+ * <p>Every minute one node of the cluster checks the WeCom identity providers of all realms, and
+ * those whose {@link WechatWorkProviderConfig#getDirectorySyncInterval() sync interval} has elapsed
+ * are synced, one at a time on a background thread and on one node at a time. A sync streams
+ * {@code department/simplelist} and the {@code user/list} of every department, and writes the
+ * members in transactions of {@link #BATCH_SIZE} users, skipping writes of unchanged values.
+ * Members WeCom reports as disabled or resigned get their users disabled, and enabled again once
+ * they are active.
+ *
+ * <p>The digest of each department's member list is kept in a realm attribute as the watermark of
+ * the next run: departments that did not change are skipped without touching the database. A
+ * department larger than one batch is not held in memory, its member list is read a second time
+ * to write it when its digest changed. The digest of a department with members that could not be
+ * written is not kept, so they are retried on the next run.
+ *
+ * <p>After a complete run of the whole directory, users linked to members who were not listed are
+ * disabled as a {@code delete_user} callback would. Identity provider mappers do not run during a
+ * sync but on the next login as usual.
+ */
+final class WechatWorkDirectorySync {
+  private static final Logger logger = Logger.getLogger(WechatWorkDirectorySync.class);
+
+  static final String SYNCED_AT_ATTRIBUTE = "wechat_work.directory_sync.%s.synced_at";
+  static final String DEPARTMENTS_ATTRIBUTE = "wechat_work.directory_sync.%s.departments";
+  // 每个事务写入的成员数
+  static final int BATCH_SIZE = 100;
+  // 成员在企业微信中被禁用或离职的时间（毫秒），区别于管理员手动禁用
+  static final String DISABLED_AT = "wechat_work_disabled_at";
+
+  private static final String ACCESS_TOKEN_KEY = "access_token";
+  private static final Set<String> DEPARTMENT_FIELDS = Collections.singleton("id");
+  // status: 2=已禁用，5=退出企业
+  private static final Set<String> INACTIVE_STATUSES =
+      Collections.unmodifiableSet(new HashSet<>(Arrays.asList("2", "5")));
+  private static final String LOCK_KEY = "wechat_work_directory_sync:%s:%s";
+  private static final String TICK_KEY = "wechat_work_directory_sync:tick";
+  // 集群锁的最长持有时间，节点宕机后其它节点可以在此之后接手
+  private static final long LOCK_SECONDS = 3600;
+  // 检查哪些身份提供者需要同步的间隔
+  private static final long TICK_SECONDS = 60;
+  private static final String NODE_ID = UUID.randomUUID().toString();
+
+  private static final AtomicBoolean started = new AtomicBoolean();
+  private static final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "wechat-work-directory-sync");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private WechatWorkDirectorySync() {}
+
+  /** Starts checking for due syncs, once per node. */
+  static void start(KeycloakSessionFactory factory) {
+    if (started.compareAndSet(false, true)) {
+      scheduler.scheduleWithFixedDelay(
+          () -> syncDue(factory), TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  private static void syncDue(KeycloakSessionFactory factory) {
+    List<Map.Entry<String, WechatWorkProviderConfig>> due = new ArrayList<>();
+    try {
+      // 每个周期只由一个节点遍历领域和身份提供者，略短于周期以免时钟漂移跳过一次
+      if (!lock(factory, TICK_KEY, TICK_SECONDS - 5)) {
+        return;
+      }
+      KeycloakModelUtils.runJobInTransaction(
+          factory,
+          session ->
+              session
+                  .realms()
+                  .getRealmsStream()
+                  .forEach(
+                      realm ->
+                          realm
+                              .getIdentityProvidersStream()
+                              .filter(WechatWorkDirectorySync::isSynced)
+                              .map(WechatWorkProviderConfig::new)
+                              .filter(config -> isDue(realm, config))
+                              .forEach(
+                                  config ->
+                                      due.add(
+                                          new AbstractMap.SimpleImmutableEntry<>(
+                                              realm.getId(), config)))));
+    } catch (RuntimeException e) {
+      logger.warn("failed to look up WeCom directory syncs", e);
+      return;
+    }
+    for (Map.Entry<String, WechatWorkProviderConfig> entry : due) {
+      try {
+        sync(factory, entry.getKey(), entry.getValue());
+      } catch (RuntimeException e) {
+        logger.warnf(e, "WeCom directory sync of %s failed", entry.getValue().getAlias());
+      }
+    }
+  }
+
+  private static boolean isSynced(IdentityProviderModel model) {
+    return WechatWorkIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())
+        && model.isEnabled();
+  }
+
+  private static boolean isDue(RealmModel realm, WechatWorkProviderConfig config) {
+    long interval = config.getDirectorySyncInterval();
+    if (interval <= 0) {
+      return false;
+    }
+    String syncedAt = realm.getAttribute(String.format(SYNCED_AT_ATTRIBUTE, config.getAlias()));
+    try {
+      return syncedAt == null
+          || Time.currentTimeMillis() - Long.parseLong(syncedAt) >= interval * 1000;
+    } catch (NumberFormatException e) {
+      return true;
+    }
+  }
+
+  /** Syncs the members of {@code config} into the realm, unless another node is already on it. */
+  static void sync(
+      KeycloakSessionFactory factory, String realmId, WechatWorkProviderConfig config) {
+    String lockKey = String.format(LOCK_KEY, realmId, config.getAlias());
+    if (!lock(factory, lockKey, LOCK_SECONDS)) {
+      logger.debugf("WeCom directory sync of %s is running on another node", config.getAlias());
+      return;
+    }
+    try {
+      new Run(factory, realmId, config).execute();
+    } finally {
+      unlock(factory, lockKey);
+    }
+  }
+
+  private static boolean lock(KeycloakSessionFactory factory, String lockKey, long seconds) {
+    return KeycloakModelUtils.runJobInTransactionWithResult(
+        factory,
+        session -> {
+          Cache<String, String> work = getWorkCache(session);
+          return work == null
+              || work.putIfAbsent(lockKey, NODE_ID, seconds, TimeUnit.SECONDS) == null;
+        });
+  }
+
+  private static void unlock(KeycloakSessionFactory factory, String lockKey) {
+    KeycloakModelUtils.runJobInTransaction(
+        factory,
+        session -> {
+          Cache<String, String> work = getWorkCache(session);
+          if (work != null) {
+            work.remove(lockKey, NODE_ID);
+          }
+        });
+  }
+
+  private static Cache<String, String> getWorkCache(KeycloakSession session) {
+    InfinispanConnectionProvider provider = session.getProvider(InfinispanConnectionProvider.class);
+    return provider == null
+        ? null
+        : provider.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+  }
+
+  private enum Outcome {
+    CREATED,
+    UPDATED,
+    UNCHANGED,
+    CONFLICT,
+    FAILED,
+    DEPARTED
+  }
+
+  /** One sync of one identity provider. */
+  private static final class Run {
+    private final KeycloakSessionFactory factory;
+    private final String realmId;
+    private final WechatWorkProviderConfig config;
+    private final WechatWorkProfileMapping mapping;
+    private final Set<String> memberFields;
+    private final Map<String, String> previousDigests;
+    private final Map<String, String> digests = new HashMap<>();
+    private final Set<String> seen = new HashSet<>();
+    // 本次列出的全部成员，包括未变化而跳过的部门
+    private final Set<String> listed = new HashSet<>();
+    private final Map<Outcome, Integer> outcomes = new EnumMap<>(Outcome.class);
+    private final List<JsonNode> batch = new ArrayList<>(BATCH_SIZE);
+    private boolean departmentBuffered;
+    private boolean completed;
+    private int skippedDepartments;
+    private int failures;
+
+    Run(KeycloakSessionFactory factory, String realmId, WechatWorkProviderConfig config) {
+      this.factory = factory;
+      this.realmId = realmId;
+      this.config = config;
+      this.mapping = config.getProfileMapping();
+      Set<String> memberFields = new HashSet<>(mapping.getProfileFields());
+      memberFields.add(WechatWorkIdentityProvider.PROFILE_ENABLE);
+      memberFields.add(WechatWorkIdentityProvider.PROFILE_STATUS);
+      this.memberFields = Collections.unmodifiableSet(memberFields);
+      this.previousDigests = readDigests();
+    }
+
+    void execute() {
+      long start = Time.currentTimeMillis();
+      logger.infof("WeCom directory sync of %s started", config.getAlias());
+      try {
+        List<String> departments = new ArrayList<>();
+        stream(
+            WechatWorkIdentityProvider.DEPARTMENT_LIST_PATH,
+            "department_id",
+            DEPARTMENT_FIELDS,
+            department -> departments.add(department.path("id").asText()),
+            "id",
+            config.getDirectorySyncDepartment());
+        for (String department : departments) {
+          syncDepartment(department);
+        }
+        completed = true;
+        disableDeparted(start);
+      } catch (IOException e) {
+        throw new IdentityBrokerException("WeCom directory sync failed", e);
+      } finally {
+        // 失败时同样记录同步时间，避免在企业微信故障期间每分钟重试
+        writeWatermark(start);
+      }
+      logger.infof(
+          "WeCom directory sync of %s finished in %d ms: %s, %d unchanged departments skipped",
+          config.getAlias(), Time.currentTimeMillis() - start, outcomes, skippedDepartments);
+    }
+
+    /**
+     * Syncs one department. Its members are buffered while they fit in one batch; a larger
+     * department is only digested, and read again by {@link #writeDepartment} when it changed. The
+     * digest is only kept when all of its members were written.
+     */
+    private void syncDepartment(String department) throws IOException {
+      MessageDigest digest = sha256();
+      departmentBuffered = true;
+      int failed = failures;
+      stream(
+          WechatWorkIdentityProvider.USER_LIST_PATH,
+          "userlist",
+          memberFields,
+          member -> {
+            digest.update(member.toString().getBytes(StandardCharsets.UTF_8));
+            String userId = member.path(WechatWorkProfileMapping.ID_FIELD).asText("");
+            if (!userId.isEmpty()) {
+              listed.add(userId);
+            }
+            if (!departmentBuffered) {
+              return;
+            }
+            if (batch.size() < BATCH_SIZE) {
+              batch.add(member);
+            } else {
+              batch.clear();
+              departmentBuffered = false;
+            }
+          },
+          "department_id",
+          department);
+      String hash = hex(digest.digest());
+      if (hash.equals(previousDigests.get(department))) {
+        batch.clear();
+        skippedDepartments++;
+      } else if (departmentBuffered) {
+        flush();
+      } else {
+        hash = writeDepartment(department);
+      }
+      if (failures == failed) {
+        digests.put(department, hash);
+      }
+    }
+
+    /** Streams the members of a changed department again, writing them batch by batch. */
+    private String writeDepartment(String department) throws IOException {
+      MessageDigest digest = sha256();
+      stream(
+          WechatWorkIdentityProvider.USER_LIST_PATH,
+          "userlist",
+          memberFields,
+          member -> {
+            digest.update(member.toString().getBytes(StandardCharsets.UTF_8));
+            batch.add(member);
+            if (batch.size() >= BATCH_SIZE) {
+              flush();
+            }
+          },
+          "department_id",
+          department);
+      flush();
+      return hex(digest.digest());
+    }
+
+    /**
+     * Streams a list API with the current access token, renewing the token once when WeCom
+     * rejects it. A rejected call has no elements, so nothing is handed out twice.
+     */
+    private void stream(
+        String path,
+        String arrayField,
+        Set<String> fields,
+        Consumer<JsonNode> elements,
+        String name,
+        String value)
+        throws IOException {
+      WechatWorkApiClient client = WechatWorkApiClient.get(config);
+      String url = config.getApiUrl(path);
+      String accessToken = withSession(s -> WechatWorkTokenManager.getAccessToken(s, config));
+      JsonNode result =
+          client.stream(
+              url, arrayField, fields, elements, ACCESS_TOKEN_KEY, accessToken, name, value);
+      if (WechatWorkErrcode.of(result) == WechatWorkErrcode.TOKEN) {
+        String renewed =
+            withSession(s -> WechatWorkTokenManager.resetAccessToken(s, config, accessToken));
+        result =
+            client.stream(
+                url, arrayField, fields, elements, ACCESS_TOKEN_KEY, renewed, name, value);
+      }
+      int errcode = result.path("errcode").asInt();
+      if (errcode != 0) {
+        throw new WechatWorkApiException(path, errcode, result.path("errmsg").asText());
+      }
+    }
+
+    /** Writes the batch in one transaction, or member by member if the transaction fails. */
+    private void flush() {
+      List<JsonNode> members = new ArrayList<>(batch.size());
+      for (JsonNode member : batch) {
+        String userId = member.path(WechatWorkProfileMapping.ID_FIELD).asText("");
+        if (!userId.isEmpty() && seen.add(userId)) {
+          members.add(member);
+        }
+      }
+      batch.clear();
+      if (members.isEmpty()) {
+        return;
+      }
+      try {
+        count(withSession(session -> upsert(session, members)));
+      } catch (RuntimeException e) {
+        // 整批失败（如邮箱重复）时逐个重试，只跳过出错的成员
+        logger.debugf(e, "batch of %d members failed, retrying one by one", members.size());
+        for (JsonNode member : members) {
+          try {
+            count(withSession(session -> upsert(session, Collections.singletonList(member))));
+          } catch (RuntimeException ex) {
+            logger.warnf(
+                "failed to sync WeCom member %s: %s",
+                member.path(WechatWorkProfileMapping.ID_FIELD).asText(), ex.toString());
+            count(Collections.singletonMap(Outcome.FAILED, 1));
+          }
+        }
+      }
+    }
+
+    private Map<Outcome, Integer> upsert(KeycloakSession session, List<JsonNode> members) {
+      RealmModel realm = session.realms().getRealm(realmId);
+      String syncedAt = String.valueOf(Time.currentTimeMillis());
+      Map<Outcome, Integer> result = new EnumMap<>(Outcome.class);
+      for (JsonNode member : members) {
+        BrokeredIdentityContext identity = mapping.map(member);
+        UserModel user =
+            session
+                .users()
+                .getUserByFederatedIdentity(
+                    realm, new FederatedIdentityModel(config.getAlias(), identity.getId(), null));
+        Outcome outcome = Outcome.UNCHANGED;
+        if (user == null) {
+          String username = identity.getModelUsername();
+          if (session.users().getUserByUsername(realm, username) != null) {
+            // 已存在同名的本地用户，是否关联交由首次登录流程决定
+            result.merge(Outcome.CONFLICT, 1, Integer::sum);
+            continue;
+          }
+          user = session.users().addUser(realm, username);
+          session
+              .users()
+              .addFederatedIdentity(
+                  realm,
+                  user,
+                  new FederatedIdentityModel(config.getAlias(), identity.getId(), username));
+          outcome = Outcome.CREATED;
+        }
+        boolean changed = WechatWorkUserUpdates.apply(user, identity, mapping);
+        changed |= setEnabled(user, isActive(member), outcome == Outcome.CREATED, syncedAt);
+        if (changed && outcome != Outcome.CREATED) {
+          outcome = Outcome.UPDATED;
+        }
+        if (outcome != Outcome.UNCHANGED) {
+          user.setSingleAttribute(WechatWorkIdentityProvider.PROFILE_SYNCED_AT, syncedAt);
+        }
+        result.merge(outcome, 1, Integer::sum);
+      }
+      return result;
+    }
+
+    /**
+     * Disables the user of a disabled or resigned member, and enables it again once the member is
+     * active, unless it was disabled by someone else. Returns whether the user changed.
+     */
+    private boolean setEnabled(UserModel user, boolean active, boolean created, String syncedAt) {
+      if (!active) {
+        if (!created && (!user.isEnabled() || user.getFirstAttribute(DISABLED_AT) != null)) {
+          return false;
+        }
+        user.setEnabled(false);
+        user.setSingleAttribute(DISABLED_AT, syncedAt);
+        return true;
+      }
+      if (created) {
+        user.setEnabled(true);
+        return true;
+      }
+      if (user.getFirstAttribute(DISABLED_AT) == null
+          && user.getFirstAttribute(WechatWorkContactEvents.DELETED_AT) == null) {
+        return false;
+      }
+      user.removeAttribute(DISABLED_AT);
+      user.removeAttribute(WechatWorkContactEvents.DELETED_AT);
+      user.setEnabled(true);
+      return true;
+    }
+
+    /**
+     * Disables the enabled users linked to members that were not listed, when the run covered the
+     * whole directory. Users created since {@code start}, such as by a login during the run, are
+     * left alone.
+     */
+    private void disableDeparted(long start) {
+      if (!WechatWorkProviderConfig.DEFAULT_DIRECTORY_SYNC_DEPARTMENT.equals(
+              config.getDirectorySyncDepartment())
+          || listed.isEmpty()) {
+        return;
+      }
+      Map<String, String> query = Collections.singletonMap(UserModel.IDP_ALIAS, config.getAlias());
+      for (int first = 0; ; first += BATCH_SIZE) {
+        int offset = first;
+        int found =
+            withSession(
+                session -> {
+                  RealmModel realm = session.realms().getRealm(realmId);
+                  String deletedAt = String.valueOf(Time.currentTimeMillis());
+                  List<UserModel> users =
+                      session
+                          .users()
+                          .searchForUserStream(realm, query, offset, BATCH_SIZE)
+                          .collect(Collectors.toList());
+                  int departed = 0;
+                  for (UserModel user : users) {
+                    FederatedIdentityModel link =
+                        session.users().getFederatedIdentity(realm, user, config.getAlias());
+                    if (link == null
+                        || listed.contains(link.getUserId())
+                        || !user.isEnabled()
+                        || user.getCreatedTimestamp() == null
+                        || user.getCreatedTimestamp() >= start) {
+                      continue;
+                    }
+                    user.setEnabled(false);
+                    user.setSingleAttribute(WechatWorkContactEvents.DELETED_AT, deletedAt);
+                    user.removeAttribute(WechatWorkIdentityProvider.PROFILE_SYNCED_AT);
+                    departed++;
+                  }
+                  if (departed > 0) {
+                    outcomes.merge(Outcome.DEPARTED, departed, Integer::sum);
+                  }
+                  return users.size();
+                });
+        if (found < BATCH_SIZE) {
+          return;
+        }
+      }
+    }
+
+    private void count(Map<Outcome, Integer> counts) {
+      counts.forEach((outcome, n) -> outcomes.merge(outcome, n, Integer::sum));
+      failures +=
+          counts.getOrDefault(Outcome.FAILED, 0) + counts.getOrDefault(Outcome.CONFLICT, 0);
+    }
+
+    private Map<String, String> readDigests() {
+      String value =
+          withSession(
+              session ->
+                  session
+                      .realms()
+                      .getRealm(realmId)
+                      .getAttribute(String.format(DEPARTMENTS_ATTRIBUTE, config.getAlias())));
+      if (value == null) {
+        return Collections.emptyMap();
+      }
+      try {
+        return JsonSerialization.readValue(value, new TypeReference<Map<String, String>>() {});
+      } catch (IOException e) {
+        logger.warnf("ignoring unreadable directory sync watermark of %s", config.getAlias());
+        return Collections.emptyMap();
+      }
+    }
+
+    private void writeWatermark(long syncedAt) {
+      // 中途失败时保留未同步部门的旧摘要，完成时丢弃已删除部门的摘要
+      Map<String, String> watermark = new HashMap<>(completed ? digests : previousDigests);
+      watermark.putAll(digests);
+      String value;
+      try {
+        value = JsonSerialization.writeValueAsString(watermark);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      KeycloakModelUtils.runJobInTransaction(
+          factory,
+          session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            realm.setAttribute(
+                String.format(SYNCED_AT_ATTRIBUTE, config.getAlias()), String.valueOf(syncedAt));
+            realm.setAttribute(String.format(DEPARTMENTS_ATTRIBUTE, config.getAlias()), value);
+          });
+    }
+
+    private <T> T withSession(KeycloakSessionTaskWithResult<T> task) {
+      return KeycloakModelUtils.runJobInTransactionWithResult(factory, task);
+    }
+  }
+
+  /** Whether WeCom reports {@code member} as neither disabled ({@code enable=0}) nor resigned. */
+  private static boolean isActive(JsonNode member) {
+    return !"0".equals(member.path(WechatWorkIdentityProvider.PROFILE_ENABLE).asText())
+        && !INACTIVE_STATUSES.contains(
+            member.path(WechatWorkIdentityProvider.PROFILE_STATUS).asText());
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] hash) {
+    StringBuilder hex = new StringBuilder();
+    for (int i = 0; i < 8; i++) {
+      hex.append(String.format("%02x", hash[i]));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,47 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * How a WeCom errcode is handled, see https://developer.work.weixin.qq.com/document/path/90313.
+ */
+enum WechatWorkErrcode {
+  /** errcode 0. */
+  OK,
+  /** -1 system busy, or no usable response at all: retried with backoff. */
+  TRANSIENT,
+  /** 45009/45011/45033 frequency or concurrency limits: retried once after a longer backoff. */
+  RATE_LIMITED,
+  /** 40014/41001/42001 access token errors: retried once with a new token by the caller. */
+  TOKEN,
+  /** Anything else, e.g. an invalid code or an unknown user: never retried. */
+  PERMANENT;
+
+  static WechatWorkErrcode of(int errcode) {
+    switch (errcode) {
+      case 0:
+        return OK;
+      case -1:
+        return TRANSIENT;
+      case 45009: // 接口调用超过限制
+      case 45011: // API 调用太频繁
+      case 45033: // 接口并发调用超过限制
+        return RATE_LIMITED;
+      case 40014: // 不合法的 access_token
+      case 41001: // 缺少 access_token 参数
+      case 42001: // access_token 已过期
+        return TOKEN;
+      default:
+        return PERMANENT;
+    }
+  }
+
+  static WechatWorkErrcode of(JsonNode response) {
+    return of(response.path("errcode").asInt());
+  }
+
+  /** Whether WeCom itself is struggling, which counts against the circuit breaker. */
+  boolean isFailure() {
+    return this == TRANSIENT || this == RATE_LIMITED;
+  }
+}
@@ -0,0 +1,111 @@
+package org.keycloak.social.wechat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+
+/**
+ * Short-lived cache of the WeCom members validated by an external token exchange, keyed by tenant
+ * and userid. The members of all tenants share one node-local cache bounded by {@link
+ * #setMaxSize}.
+ *
+ * <p>Within {@link WechatWorkProviderConfig#getExchangeCacheTtl()} of a validated exchange, the
+ * next exchange of the same member skips {@code user/get} and gets an identity holding only the
+ * id, username, email and names. It is marked with {@link
+ * WechatWorkIdentityProvider#CONTEXT_EXCHANGE_CACHED} so the provider and its mappers leave the
+ * user, written by the first exchange, alone. A TTL of 0 disables caching.
+ */
+final class WechatWorkExchangeCache {
+  private static final String EXCHANGE_CACHE_NAME = "wechat_work_exchange";
+
+  static final long DEFAULT_MAX_SIZE = 10000;
+
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+  private static volatile long maxSize = DEFAULT_MAX_SIZE;
+
+  private WechatWorkExchangeCache() {}
+
+  /** Sets the number of members kept on this node, before the cache is first used. */
+  static void setMaxSize(long size) {
+    maxSize = size;
+  }
+
+  /** Returns the identity of a member validated within the TTL, or {@code null}. */
+  static BrokeredIdentityContext get(WechatWorkProviderConfig config, String userId) {
+    if (config.getExchangeCacheTtl() <= 0 || userId == null) {
+      return null;
+    }
+    Subject subject = Subjects.cache.get(key(config, userId));
+    if (subject == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    BrokeredIdentityContext identity = new BrokeredIdentityContext(subject.id);
+    identity.setUsername(subject.username);
+    identity.setBrokerUserId(subject.brokerUserId);
+    identity.setModelUsername(subject.modelUsername);
+    identity.setEmail(subject.email);
+    identity.setFirstName(subject.firstName);
+    identity.setLastName(subject.lastName);
+    identity.getContextData().put(WechatWorkIdentityProvider.CONTEXT_EXCHANGE_CACHED, Boolean.TRUE);
+    return identity;
+  }
+
+  /** Remembers the identity of a member whose exchange was just validated with WeCom. */
+  static void put(
+      WechatWorkProviderConfig config, String userId, BrokeredIdentityContext identity) {
+    long ttl = config.getExchangeCacheTtl();
+    if (ttl <= 0 || userId == null) {
+      return;
+    }
+    Subjects.cache.put(key(config, userId), new Subject(identity), ttl, TimeUnit.SECONDS);
+  }
+
+  static long getHitCount() {
+    return hits.sum();
+  }
+
+  static long getMissCount() {
+    return misses.sum();
+  }
+
+  private static String key(WechatWorkProviderConfig config, String userId) {
+    return config.getTenantKey() + ":" + userId;
+  }
+
+  /** The single exchange cache of this node, created on first use. */
+  private static final class Subjects {
+    static final Cache<String, Subject> cache =
+        WechatWorkCaches.getOrCreate(
+            EXCHANGE_CACHE_NAME,
+            () -> {
+              ConfigurationBuilder builder = new ConfigurationBuilder();
+              builder.memory().maxCount(maxSize);
+              return builder.build();
+            });
+  }
+
+  private static final class Subject {
+    private final String id;
+    private final String username;
+    private final String brokerUserId;
+    private final String modelUsername;
+    private final String email;
+    private final String firstName;
+    private final String lastName;
+
+    Subject(BrokeredIdentityContext identity) {
+      this.id = identity.getId();
+      this.username = identity.getUsername();
+      this.brokerUserId = identity.getBrokerUserId();
+      this.modelUsername = identity.getModelUsername();
+      this.email = identity.getEmail();
+      this.firstName = identity.getFirstName();
+      this.lastName = identity.getLastName();
+    }
+  }
+}
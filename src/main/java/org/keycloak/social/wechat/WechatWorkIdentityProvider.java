@@ -18,25 +18,35 @@ package org.keycloak.social.wechat;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import jakarta.ws.rs.core.*;
-import org.infinispan.Cache;
-import org.infinispan.configuration.cache.ConfigurationBuilder;
-import org.infinispan.manager.DefaultCacheManager;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.OAuthErrorException;
 import org.keycloak.broker.oidc.AbstractOAuth2IdentityProvider;
 import org.keycloak.broker.oidc.mappers.AbstractJsonUserAttributeMapper;
 import org.keycloak.broker.provider.AuthenticationRequest;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.broker.provider.IdentityBrokerException;
-import org.keycloak.broker.provider.util.SimpleHttp;
+import org.keycloak.broker.provider.IdentityProviderMapper;
 import org.keycloak.broker.social.SocialIdentityProvider;
+import org.keycloak.common.util.Time;
+import org.keycloak.events.Details;
+import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
+import org.keycloak.models.FederatedIdentityModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.services.ErrorResponseException;
 
 public class WechatWorkIdentityProvider
         extends AbstractOAuth2IdentityProvider<WechatWorkProviderConfig>
@@ -45,15 +55,22 @@ public class WechatWorkIdentityProvider
     public static final String AUTH_URL = "https://open.weixin.qq.com/connect/oauth2/authorize";
     public static final String QRCODE_AUTH_URL =
             "https://open.work.weixin.qq.com/wwopen/sso/qrConnect"; // 企业微信外使用
-    public static final String TOKEN_URL = "https://qyapi.weixin.qq.com/cgi-bin/gettoken";
+    public static final String TOKEN_PATH = "/gettoken";
+    public static final String TOKEN_URL = WechatWorkProviderConfig.DEFAULT_API_BASE_URL + TOKEN_PATH;
 
     public static final String DEFAULT_SCOPE = "snsapi_base";
     public static final String DEFAULT_RESPONSE_TYPE = "code";
     public static final String WEIXIN_REDIRECT_FRAGMENT = "wechat_redirect";
 
-    public static final String PROFILE_URL = "https://qyapi.weixin.qq.com/cgi-bin/user/getuserinfo";
-    public static final String PROFILE_DETAIL_URL = "https://qyapi.weixin.qq.com/cgi-bin/user/get";
-    public static final String USER_DETAIL_URL = "https://qyapi.weixin.qq.com/cgi-bin/auth/getuserdetail";
+    public static final String PROFILE_PATH = "/user/getuserinfo";
+    public static final String PROFILE_DETAIL_PATH = "/user/get";
+    public static final String USER_DETAIL_PATH = "/auth/getuserdetail";
+    public static final String DEPARTMENT_LIST_PATH = "/department/simplelist";
+    public static final String USER_LIST_PATH = "/user/list";
+    public static final String DEPARTMENT_TREE_PATH = "/department/list";
+    public static final String PROFILE_URL = WechatWorkProviderConfig.DEFAULT_API_BASE_URL + PROFILE_PATH;
+    public static final String PROFILE_DETAIL_URL = WechatWorkProviderConfig.DEFAULT_API_BASE_URL + PROFILE_DETAIL_PATH;
+    public static final String USER_DETAIL_URL = WechatWorkProviderConfig.DEFAULT_API_BASE_URL + USER_DETAIL_PATH;
 
     public static final String OAUTH2_PARAMETER_CLIENT_ID = "appid";
     public static final String OAUTH2_PARAMETER_AGENT_ID = "agentId";
@@ -66,86 +83,32 @@ public class WechatWorkIdentityProvider
     public static final String PROFILE_STATUS = "status";
     public static final String PROFILE_ENABLE = "enable";
     public static final String PROFILE_USERID = "userid";
+    public static final String PROFILE_DEPARTMENT = "department";
+    // 最近一次从 user/get 同步成员详情的时间（毫秒）
+    public static final String PROFILE_SYNCED_AT = "wechat_work_synced_at";
 
-    private final String ACCESS_TOKEN_KEY = "access_token";
-    private final String ACCESS_TOKEN_CACHE_KEY = "wechat_work_sso_access_token";
+    // 标记 BrokeredIdentityContext 是否由完整的成员详情构建
+    private static final String CONTEXT_ENRICHED = "wechat_work.enriched";
+    // 成员所在部门 id 列表，供部门群组映射器使用
+    static final String CONTEXT_DEPARTMENTS = "wechat_work.departments";
+    // 标记 BrokeredIdentityContext 来自令牌交换缓存，用户已在缓存有效期内更新过
+    static final String CONTEXT_EXCHANGE_CACHED = "wechat_work.exchange_cached";
 
-    private static final DefaultCacheManager cacheManager = new DefaultCacheManager();
-    private static final String WECHAT_WORK_CACHE_NAME = "wechat_work_sso";
-    private static final ConcurrentMap<String, Cache<String, String>> caches =
-            new ConcurrentHashMap<>();
+    private final String ACCESS_TOKEN_KEY = "access_token";
+    private static final Set<String> USERINFO_FIELDS =
+            Collections.unmodifiableSet(new HashSet<>(Arrays.asList("errcode", "errmsg", "UserId")));
     protected KeycloakSession session;
 
-    private static Cache<String, String> createCache(String suffix) {
-        try {
-            String cacheName = WECHAT_WORK_CACHE_NAME + ":" + suffix;
-
-            ConfigurationBuilder config = new ConfigurationBuilder();
-            cacheManager.defineConfiguration(cacheName, config.build());
-
-            Cache<String, String> cache = cacheManager.getCache(cacheName);
-            logger.info(cache);
-            return cache;
-        } catch (Exception e) {
-            logger.error(e);
-            e.printStackTrace(System.out);
-            throw e;
-        }
-    }
-
-    private Cache<String, String> getCache() {
-        return caches.computeIfAbsent(
-                getConfig().getClientId() + ":" + getConfig().getAgentId(),
-                WechatWorkIdentityProvider::createCache);
-    }
-
     private String getAccessToken() {
-        try {
-            String token = getCache().get(ACCESS_TOKEN_CACHE_KEY);
-            if (token == null) {
-                JsonNode j = renewAccessToken();
-                if (j == null) {
-                    j = renewAccessToken();
-                    if (j == null) {
-                        throw new Exception("renew access token error");
-                    }
-                    logger.debug("retry in renew access token " + j);
-                }
-                token = getJsonProperty(j, ACCESS_TOKEN_KEY);
-                long timeout = Integer.parseInt(getJsonProperty(j, "expires_in"));
-                getCache().put(ACCESS_TOKEN_CACHE_KEY, token, timeout, TimeUnit.SECONDS);
-            }
-            return token;
-        } catch (Exception e) {
-            logger.error(e);
-            e.printStackTrace(System.out);
-        }
-        return null;
-    }
-
-    private JsonNode renewAccessToken() {
-        try {
-            return SimpleHttp.doGet(TOKEN_URL, session)
-                    .param(WEIXIN_CORP_ID, getConfig().getClientId())
-                    .param(WEIXIN_CORP_SECRET, getConfig().getClientSecret())
-                    .asJson();
-        } catch (Exception e) {
-            logger.error(e);
-            e.printStackTrace(System.out);
-        }
-        return null;
+        return WechatWorkTokenManager.getAccessToken(session, getConfig());
     }
 
-    private String resetAccessToken() {
-        getCache().remove(ACCESS_TOKEN_CACHE_KEY);
-        return getAccessToken();
+    private String resetAccessToken(String staleToken) {
+        return WechatWorkTokenManager.resetAccessToken(session, getConfig(), staleToken);
     }
 
     public WechatWorkIdentityProvider(KeycloakSession session, WechatWorkProviderConfig config) {
         super(session, config);
-        config.setAuthorizationUrl(AUTH_URL);
-        config.setQrcodeAuthorizationUrl(QRCODE_AUTH_URL);
-        config.setTokenUrl(TOKEN_URL);
         this.session = session;
     }
 
@@ -162,86 +125,267 @@ public class WechatWorkIdentityProvider
     @Override
     protected BrokeredIdentityContext extractIdentityFromProfile(
             EventBuilder event, JsonNode profile) {
-        logger.info(profile.toString());
+        logger.debug(profile);
         // profile: see https://work.weixin.qq.com/api/doc#90000/90135/90196
-        BrokeredIdentityContext identity =
-                new BrokeredIdentityContext((getJsonProperty(profile, "userid")));
-
-        identity.setUsername(getJsonProperty(profile, "userid").toLowerCase());
-        identity.setBrokerUserId(getJsonProperty(profile, "userid").toLowerCase());
-        identity.setModelUsername(getJsonProperty(profile, "userid").toLowerCase());
-        String email = getJsonProperty(profile, "biz_mail");
-        if (email == null || email.length() == 0) {
-            email = getJsonProperty(profile, "email");
-        }
-        if (email != null) {
-            identity.setFirstName(email.split("@")[0].toLowerCase());
-            identity.setEmail(email);
-        }
-        identity.setLastName(getJsonProperty(profile, "name"));
-        // 手机号码，第三方仅通讯录应用可获取
-        identity.setUserAttribute(PROFILE_MOBILE, getJsonProperty(profile, "mobile"));
-        // 性别。0表示未定义，1表示男性，2表示女性
-        identity.setUserAttribute(PROFILE_GENDER, getJsonProperty(profile, "gender"));
-        // 激活状态: 1=已激活，2=已禁用，4=未激活。
-        // 已激活代表已激活企业微信或已关注微工作台（原企业号）。未激活代表既未激活企业微信又未关注微工作台（原企业号）。
-        identity.setUserAttribute(PROFILE_STATUS, getJsonProperty(profile, "status"));
-        // 成员启用状态。1表示启用的成员，0表示被禁用。注意，服务商调用接口不会返回此字段
-        identity.setUserAttribute(PROFILE_ENABLE, getJsonProperty(profile, "enable"));
-        identity.setUserAttribute(PROFILE_USERID, getJsonProperty(profile, "userid"));
+        BrokeredIdentityContext identity = getConfig().getProfileMapping().map(profile);
 
         identity.setIdpConfig(getConfig());
         identity.setIdp(this);
+        identity.getContextData().put(CONTEXT_ENRICHED, Boolean.TRUE);
+        JsonNode departments = profile.get(PROFILE_DEPARTMENT);
+        if (departments != null && departments.isArray()) {
+            List<String> departmentIds = new ArrayList<>(departments.size());
+            departments.forEach(department -> departmentIds.add(department.asText()));
+            identity.getContextData().put(CONTEXT_DEPARTMENTS, departmentIds);
+        }
         AbstractJsonUserAttributeMapper.storeUserProfileForMapper(
                 identity, profile, getConfig().getAlias());
         return identity;
     }
 
     public BrokeredIdentityContext getFederatedIdentity(String authorizationCode) {
-        logger.info("getting federated identity");
+        return getFederatedIdentity(authorizationCode, null);
+    }
 
-        String accessToken = getAccessToken();
-        if (accessToken == null) {
-            throw new IdentityBrokerException("No access token available");
+    /**
+     * Resolves the member behind {@code authorizationCode}. Duplicate callbacks with the same code
+     * and state reuse the userid resolved by the first one, see {@link WechatWorkAuthCodes}.
+     */
+    public BrokeredIdentityContext getFederatedIdentity(String authorizationCode, String state) {
+        logger.debug("getting federated identity");
+
+        try {
+            WechatWorkApiClient client = WechatWorkApiClient.get(getConfig());
+            String userId = WechatWorkAuthCodes.resolve(session, getConfig(), authorizationCode, state,
+                    () -> getUserId(client, authorizationCode));
+            BrokeredIdentityContext context = getIdentity(client, userId);
+            context.getContextData().put(FEDERATED_ACCESS_TOKEN, getAccessToken());
+            return context;
+        } catch (IOException e) {
+            throw new IdentityBrokerException("Could not obtain user profile from WeCom", e);
         }
+    }
+
+    /**
+     * Builds the identity of {@code userId} from the stored attributes when lazy enrichment allows
+     * it, otherwise from the cached or freshly fetched {@code user/get} profile.
+     */
+    private BrokeredIdentityContext getIdentity(WechatWorkApiClient client, String userId)
+            throws IOException {
         BrokeredIdentityContext context = null;
+        if (getConfig().isLazyEnrichment()) {
+            context = getRecentlySyncedIdentity(userId);
+        }
+        if (context == null) {
+            Set<String> profileFields = getProfileFields();
+            JsonNode profile = WechatWorkProfileCache.get(getConfig(), userId, profileFields);
+            if (profile == null) {
+                profile = getWithAccessToken(client, PROFILE_DETAIL_PATH, profileFields, "userid", userId);
+                WechatWorkProfileCache.put(getConfig(), userId, profile, profileFields);
+            }
+            context = extractIdentityFromProfile(null, profile);
+        }
+        return context;
+    }
+
+    /**
+     * External token exchange of a WeCom OAuth code, e.g. one obtained by a page opened in the
+     * WeCom app, passed as {@code subject_token}. Every exchange validates its code with {@code
+     * getuserinfo}, so a code is accepted only once, and maps the member like a login; members
+     * validated within {@link
+     * WechatWorkProviderConfig#getExchangeCacheTtl()} come from the {@link WechatWorkExchangeCache}
+     * without calling {@code user/get} or updating the user.
+     */
+    @Override
+    protected BrokeredIdentityContext exchangeExternalImpl(
+            EventBuilder event, MultivaluedMap<String, String> params) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            BrokeredIdentityContext context = exchange(event, params);
+            success = true;
+            return context;
+        } finally {
+            WechatWorkMetrics.recordExchange(System.nanoTime() - start, success);
+        }
+    }
+
+    private BrokeredIdentityContext exchange(EventBuilder event, MultivaluedMap<String, String> params) {
+        String code = params.getFirst(OAuth2Constants.SUBJECT_TOKEN);
+        if (code == null || code.isEmpty()) {
+            throw invalidSubjectToken(event, "subject_token param unset", "token not set");
+        }
+        String tokenType = params.getFirst(OAuth2Constants.SUBJECT_TOKEN_TYPE);
+        if (tokenType != null && !OAuth2Constants.ACCESS_TOKEN_TYPE.equals(tokenType)) {
+            throw invalidSubjectToken(event, "subject_token_type invalid", "invalid token type");
+        }
+        try {
+            WechatWorkApiClient client = WechatWorkApiClient.get(getConfig());
+            // 不经过回调去重缓存：code 只能使用一次，重复交换必须由 getuserinfo 拒绝
+            String userId = getUserId(client, code);
+            if (userId == null) {
+                throw invalidSubjectToken(event, "no userid for subject_token", "invalid token");
+            }
+            BrokeredIdentityContext context = WechatWorkExchangeCache.get(getConfig(), userId);
+            if (context == null) {
+                context = getIdentity(client, userId);
+                WechatWorkExchangeCache.put(getConfig(), userId, context);
+            }
+            context.setIdpConfig(getConfig());
+            context.setIdp(this);
+            return context;
+        } catch (WechatWorkRateLimitException e) {
+            logger.warn("WeCom token exchange rate limited: " + e.getMessage());
+            event.detail(Details.REASON, e.getMessage());
+            event.error(Errors.INVALID_TOKEN);
+            throw new ErrorResponseException(OAuthErrorException.TEMPORARILY_UNAVAILABLE,
+                    "WeCom API quota exhausted, retry later", Response.Status.TOO_MANY_REQUESTS);
+        } catch (WechatWorkApiException e) {
+            // 多为 code 无效或已过期
+            throw invalidSubjectToken(event, e.getMessage(), "invalid token");
+        } catch (IOException | IdentityBrokerException e) {
+            logger.warn("WeCom token exchange failed: " + e.getMessage());
+            event.detail(Details.REASON, e.getMessage());
+            event.error(Errors.INVALID_TOKEN);
+            throw new ErrorResponseException(OAuthErrorException.TEMPORARILY_UNAVAILABLE,
+                    "WeCom API unavailable", Response.Status.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private static ErrorResponseException invalidSubjectToken(
+            EventBuilder event, String reason, String description) {
+        event.detail(Details.REASON, reason);
+        event.error(Errors.INVALID_TOKEN);
+        return new ErrorResponseException(
+                OAuthErrorException.INVALID_TOKEN, description, Response.Status.BAD_REQUEST);
+    }
+
+    private String getUserId(WechatWorkApiClient client, String authorizationCode) {
         try {
-            JsonNode profile;
-            profile =
-                    SimpleHttp.doGet(PROFILE_URL, session)
-                            .param(ACCESS_TOKEN_KEY, accessToken)
-                            .param("code", authorizationCode)
-                            .asJson();
+            JsonNode profile = getWithAccessToken(client, PROFILE_PATH, USERINFO_FIELDS, "code", authorizationCode);
             // {"UserId":"ZhongXun","DeviceId":"10000556333395ZN","errcode":0,"errmsg":"ok"}
-            // 全局错误码 https://work.weixin.qq.com/api/doc/90001/90148/90455
-            // 42001	access_token已过期
-            // 40014	不合法的access_token
-            logger.info("profile in federation " + profile.toString());
-            long errorCode = profile.get("errcode").asInt();
-            if (errorCode == 42001 || errorCode == 40014) {
-                accessToken = resetAccessToken();
-                profile =
-                        SimpleHttp.doGet(PROFILE_URL, session)
-                                .param(ACCESS_TOKEN_KEY, accessToken)
-                                .param("code", authorizationCode)
-                                .asJson();
-                logger.info("profile retried " + profile.toString());
+            logger.debugv("profile in federation {0}", profile);
+            return getJsonProperty(profile, "UserId");
+        } catch (IOException e) {
+            throw new IdentityBrokerException("Could not obtain user profile from WeCom", e);
+        }
+    }
+
+    /**
+     * Calls the WeCom API at {@code path} with the access token, renewing the token and calling
+     * once more when WeCom rejects it.
+     *
+     * @throws WechatWorkApiException when WeCom answers with any other errcode
+     */
+    private JsonNode getWithAccessToken(WechatWorkApiClient client, String path, Set<String> fields,
+            String name, String value) throws IOException {
+        String url = getConfig().getApiUrl(path);
+        String accessToken = getAccessToken();
+        JsonNode result = client.get(url, fields, ACCESS_TOKEN_KEY, accessToken, name, value);
+        // 全局错误码 https://developer.work.weixin.qq.com/document/path/90313
+        if (WechatWorkErrcode.of(result) == WechatWorkErrcode.TOKEN) {
+            WechatWorkMetrics.recordTokenRetry();
+            result = client.get(url, fields, ACCESS_TOKEN_KEY, resetAccessToken(accessToken), name, value);
+            logger.debugv("{0} retried with new access token {1}", path, result);
+        }
+        int errcode = result.path("errcode").asInt();
+        if (errcode != 0) {
+            throw new WechatWorkApiException(path, errcode, result.path("errmsg").asText());
+        }
+        return result;
+    }
+
+    /**
+     * Builds the identity of an already linked user from its stored attributes, so the login skips
+     * {@code user/get}. Returns {@code null} when the user is unknown, was synced longer ago than the
+     * staleness window, or a JSON attribute mapper needs the full profile.
+     */
+    private BrokeredIdentityContext getRecentlySyncedIdentity(String userId) {
+        RealmModel realm = session.getContext().getRealm();
+        if (userId == null || realm == null || needsProfileForMappers(realm)) {
+            return null;
+        }
+        UserModel user = session.users().getUserByFederatedIdentity(
+                realm, new FederatedIdentityModel(getConfig().getAlias(), userId, null));
+        if (user == null) {
+            return null;
+        }
+        String syncedAt = user.getFirstAttribute(PROFILE_SYNCED_AT);
+        try {
+            if (syncedAt == null || Time.currentTimeMillis() - Long.parseLong(syncedAt)
+                    > getConfig().getProfileStalenessWindow() * 1000) {
+                return null;
             }
-            if (errorCode != 0) {
-                throw new IdentityBrokerException("get user info failed, please retry");
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        BrokeredIdentityContext identity = new BrokeredIdentityContext(userId);
+        // 用户名由 usernameField 映射而来，沿用上次完整同步时写入的值
+        identity.setUsername(user.getUsername());
+        identity.setBrokerUserId(user.getUsername());
+        identity.setModelUsername(user.getUsername());
+        identity.setEmail(user.getEmail());
+        identity.setFirstName(user.getFirstName());
+        identity.setLastName(user.getLastName());
+        for (String attribute : getConfig().getProfileMapping().getAttributeNames()) {
+            identity.setUserAttribute(attribute, user.getFirstAttribute(attribute));
+        }
+        identity.setIdpConfig(getConfig());
+        identity.setIdp(this);
+        logger.debugf("skip user/get for %s, synced at %s", userId, syncedAt);
+        return identity;
+    }
+
+    /**
+     * Top-level {@code user/get} fields to decode: those read by the mapping plan, the department
+     * group mapper and the {@code jsonField} of each WeCom attribute mapper, or all of them
+     * ({@code null}) when another JSON attribute mapper needs the raw profile.
+     */
+    private Set<String> getProfileFields() {
+        RealmModel realm = session.getContext().getRealm();
+        if (realm == null || needsProfileForMappers(realm)) {
+            return null;
+        }
+        Set<String> fields = new HashSet<>(getConfig().getProfileMapping().getProfileFields());
+        realm.getIdentityProviderMappersByAliasStream(getConfig().getAlias()).forEach(mapper -> {
+            if (WechatWorkDepartmentGroupMapper.PROVIDER_ID.equals(mapper.getIdentityProviderMapper())) {
+                fields.add(PROFILE_DEPARTMENT);
+            } else if (WechatWorkUserAttributeMapper.PROVIDER_ID.equals(
+                    mapper.getIdentityProviderMapper())) {
+                String jsonField = mapper.getConfig().get(AbstractJsonUserAttributeMapper.CONF_JSON_FIELD);
+                if (jsonField != null && !jsonField.trim().isEmpty()) {
+                    fields.add(topLevelField(jsonField.trim()));
+                }
+            }
+        });
+        return fields;
+    }
+
+    /** Top-level field of a {@code jsonField} path such as {@code extattr.attrs} or {@code a\.b[0]}. */
+    static String topLevelField(String jsonField) {
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < jsonField.length(); i++) {
+            char c = jsonField.charAt(i);
+            if (c == '\\' && i + 1 < jsonField.length() && jsonField.charAt(i + 1) == '.') {
+                field.append('.');
+                i++;
+            } else if (c == '.' || c == '[') {
+                break;
+            } else {
+                field.append(c);
             }
-            profile =
-                    SimpleHttp.doGet(PROFILE_DETAIL_URL, session)
-                            .param(ACCESS_TOKEN_KEY, accessToken)
-                            .param("userid", getJsonProperty(profile, "UserId"))
-                            .asJson();
-            context = extractIdentityFromProfile(null, profile);
-            context.getContextData().put(FEDERATED_ACCESS_TOKEN, accessToken);
-        } catch (Exception e) {
-            logger.error(e);
-            e.printStackTrace(System.out);
         }
-        return context;
+        return field.toString();
+    }
+
+    private boolean needsProfileForMappers(RealmModel realm) {
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        return realm.getIdentityProviderMappersByAliasStream(getConfig().getAlias())
+                .map(mapper -> sessionFactory.getProviderFactory(
+                        IdentityProviderMapper.class, mapper.getIdentityProviderMapper()))
+                .anyMatch(mapper -> mapper instanceof AbstractJsonUserAttributeMapper
+                        && !(mapper instanceof WechatWorkUserAttributeMapper));
     }
 
     @Override
@@ -250,58 +394,61 @@ public class WechatWorkIdentityProvider
     }
 
     @Override
-    protected UriBuilder createAuthorizationUrl(AuthenticationRequest request) {
-        logger.info("Creating Auth Url...");
-
-        final UriBuilder uriBuilder;
-
-        String ua = request.getSession().getContext().getRequestHeaders().getHeaderString("user-agent");
-
-        logger.info("构建授权链接。user-agent=" + ua + ", request=" + request);
-
-        if (ua.contains("wxwork")) {
-            logger.infov("企业微信内部浏览器，构建授权链接参数列表：{0}={1}; {2}={3}; {4}={5}; {6}={7}; {8}={9}; {10}={11}", "auth Url", getConfig().getAuthorizationUrl(), OAUTH2_PARAMETER_CLIENT_ID, getConfig().getClientId(), OAUTH2_PARAMETER_REDIRECT_URI,
-                    request.getRedirectUri(), OAUTH2_PARAMETER_RESPONSE_TYPE, DEFAULT_RESPONSE_TYPE, OAUTH2_PARAMETER_SCOPE,
-                    getConfig().getDefaultScope(), OAUTH2_PARAMETER_STATE, request.getState().getEncoded());
-
-            uriBuilder = UriBuilder.fromUri(getConfig().getAuthorizationUrl());
-            uriBuilder
-                    .queryParam(OAUTH2_PARAMETER_CLIENT_ID, getConfig().getClientId())
-                    .queryParam(OAUTH2_PARAMETER_REDIRECT_URI, request.getRedirectUri())
-                    .queryParam(OAUTH2_PARAMETER_RESPONSE_TYPE, DEFAULT_RESPONSE_TYPE)
-                    .queryParam(OAUTH2_PARAMETER_SCOPE, getConfig().getDefaultScope())
-                    .queryParam(OAUTH2_PARAMETER_STATE, request.getState().getEncoded());
-            uriBuilder.fragment(WEIXIN_REDIRECT_FRAGMENT);
-        } else {
-            logger.infov("企业微信外部浏览器，构建授权链接参数列表：{0}={1}; {2}={3}; {4}={5}; {6}={7}; {8}={9}; {10}={11}", "authUrl", getConfig().getQrcodeAuthorizationUrl(), OAUTH2_PARAMETER_CLIENT_ID, getConfig().getClientId(),
-                    OAUTH2_PARAMETER_AGENT_ID, getConfig().getAgentId(),
-                    OAUTH2_PARAMETER_REDIRECT_URI, request.getRedirectUri(),
-                    OAUTH2_PARAMETER_STATE, request.getState().getEncoded());
-
-            uriBuilder = UriBuilder.fromUri(getConfig().getQrcodeAuthorizationUrl());
-            uriBuilder
-                    .queryParam(OAUTH2_PARAMETER_CLIENT_ID, getConfig().getClientId())
-                    .queryParam(OAUTH2_PARAMETER_AGENT_ID.toLowerCase(), getConfig().getAgentId())
-                    .queryParam(OAUTH2_PARAMETER_REDIRECT_URI, request.getRedirectUri())
-                    .queryParam(OAUTH2_PARAMETER_STATE, request.getState().getEncoded());
+    public Response performLogin(AuthenticationRequest request) {
+        try {
+            return Response.seeOther(URI.create(getAuthorizationUrl(request))).build();
+        } catch (Exception e) {
+            throw new IdentityBrokerException("Could not create authentication request.", e);
         }
+    }
+
+    @Override
+    protected UriBuilder createAuthorizationUrl(AuthenticationRequest request) {
+        return UriBuilder.fromUri(getAuthorizationUrl(request));
+    }
 
-        logger.info("授权链接是：" + uriBuilder.build().toString());
-        return uriBuilder;
+    /**
+     * In-client OAuth URL inside the WeCom app, QR code login URL in any other browser. Only
+     * {@code redirect_uri} and {@code state} are encoded per request.
+     */
+    String getAuthorizationUrl(AuthenticationRequest request) {
+        String ua = request.getSession().getContext().getRequestHeaders().getHeaderString(HttpHeaders.USER_AGENT);
+        WechatWorkClient client = WechatWorkClient.of(ua);
+        String redirectUri = request.getRedirectUri();
+        String state = request.getState().getEncoded();
+        String url = client.isWeCom()
+                ? getConfig().getAuthorizationUrls().inClient(redirectUri, state)
+                : getConfig().getAuthorizationUrls().qrCode(redirectUri, state);
+        if (logger.isDebugEnabled()) {
+            logger.debugf("authorization url for %s (user-agent %s): %s", client, ua, url);
+        }
+        return url;
     }
 
     @Override
     public void updateBrokeredUser(
             KeycloakSession session, RealmModel realm, UserModel user, BrokeredIdentityContext context) {
-        user.setSingleAttribute(PROFILE_MOBILE, context.getUserAttribute(PROFILE_MOBILE));
-        user.setSingleAttribute(PROFILE_GENDER, context.getUserAttribute(PROFILE_GENDER));
-        user.setSingleAttribute(PROFILE_STATUS, context.getUserAttribute(PROFILE_STATUS));
-        user.setSingleAttribute(PROFILE_ENABLE, context.getUserAttribute(PROFILE_ENABLE));
-        user.setSingleAttribute(PROFILE_USERID, context.getUserAttribute(PROFILE_USERID));
-
-        user.setUsername(context.getUsername());
-        user.setFirstName(context.getFirstName());
-        user.setLastName(context.getLastName());
-        user.setEmail(context.getEmail());
+        if (Boolean.TRUE.equals(context.getContextData().get(CONTEXT_EXCHANGE_CACHED))) {
+            return;
+        }
+        WechatWorkUserUpdates.apply(user, context, getConfig().getProfileMapping());
+        markSynced(user, context);
+    }
+
+    @Override
+    public void importNewUser(
+            KeycloakSession session, RealmModel realm, UserModel user, BrokeredIdentityContext context) {
+        markSynced(user, context);
+    }
+
+    /**
+     * Records when the profile of {@code user} was last taken from {@code user/get}. Only lazy
+     * enrichment reads the timestamp, so without it no write is spent on it.
+     */
+    private void markSynced(UserModel user, BrokeredIdentityContext context) {
+        if (getConfig().isLazyEnrichment()
+                && Boolean.TRUE.equals(context.getContextData().get(CONTEXT_ENRICHED))) {
+            user.setSingleAttribute(PROFILE_SYNCED_AT, String.valueOf(Time.currentTimeMillis()));
+        }
     }
 }
@@ -16,29 +16,142 @@
  */
 package org.keycloak.social.wechat;
 
+import org.keycloak.Config;
 import org.keycloak.broker.provider.AbstractIdentityProviderFactory;
 import org.keycloak.broker.social.SocialIdentityProviderFactory;
 import org.keycloak.models.IdentityProviderModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class WechatWorkIdentityProviderFactory
     extends AbstractIdentityProviderFactory<WechatWorkIdentityProvider>
     implements SocialIdentityProviderFactory<WechatWorkIdentityProvider> {
 
   public static final String PROVIDER_ID = "wechat-work";
+  // 节点级设置，如 --spi-social-wechat-work-exchange-cache-max-size=10000
+  public static final String PROFILE_CACHE_MAX_SIZE = "profileCacheMaxSize";
+  public static final String EXCHANGE_CACHE_MAX_SIZE = "exchangeCacheMaxSize";
 
   @Override
   public String getName() {
     return "企业微信 WeCom";
   }
 
+  // 按 IdentityProviderModel 缓存解析好的配置，模型未变化时每次登录复用
+  private final ConcurrentMap<String, CachedConfig> configs = new ConcurrentHashMap<>();
+
   @Override
   public WechatWorkIdentityProvider create(KeycloakSession session, IdentityProviderModel model) {
-    return new WechatWorkIdentityProvider(session, new WechatWorkProviderConfig(model));
+    return new WechatWorkIdentityProvider(session, getConfig(model));
+  }
+
+  /**
+   * Returns the provider config of {@code model}. The config, and everything compiled from it, is
+   * built once and shared by all provider instances until the model changes; it must be treated
+   * as read-only.
+   */
+  WechatWorkProviderConfig getConfig(IdentityProviderModel model) {
+    String key = model.getInternalId() != null ? model.getInternalId() : model.getAlias();
+    List<Object> fingerprint = fingerprint(model);
+    CachedConfig cached = configs.get(key);
+    if (cached == null
+        || !cached.fingerprint.equals(fingerprint)
+        || !cached.source.equals(model.getConfig())) {
+      cached =
+          new CachedConfig(
+              fingerprint, new HashMap<>(model.getConfig()), new WechatWorkProviderConfig(model));
+      configs.put(key, cached);
+    }
+    return cached.config;
+  }
+
+  @Override
+  public void init(Config.Scope config) {
+    WechatWorkProfileCache.setMaxSize(
+        config.getLong(PROFILE_CACHE_MAX_SIZE, WechatWorkProfileCache.DEFAULT_MAX_SIZE));
+    WechatWorkExchangeCache.setMaxSize(
+        config.getLong(EXCHANGE_CACHE_MAX_SIZE, WechatWorkExchangeCache.DEFAULT_MAX_SIZE));
+  }
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+    factory.register(
+        event -> {
+          if (event instanceof RealmModel.IdentityProviderRemovedEvent) {
+            RealmModel.IdentityProviderRemovedEvent removed =
+                (RealmModel.IdentityProviderRemovedEvent) event;
+            evict(removed.getKeycloakSession(), removed.getRemovedIdentityProvider(), true);
+          } else if (event instanceof RealmModel.IdentityProviderUpdatedEvent) {
+            RealmModel.IdentityProviderUpdatedEvent updated =
+                (RealmModel.IdentityProviderUpdatedEvent) event;
+            evict(updated.getKeycloakSession(), updated.getUpdatedIdentityProvider(), false);
+          } else if (event instanceof PostMigrationEvent) {
+            WechatWorkDirectorySync.start(((PostMigrationEvent) event).getFactory());
+            WechatWorkProfileCache.listen(((PostMigrationEvent) event).getFactory());
+            WechatWorkDepartmentTree.listen(((PostMigrationEvent) event).getFactory());
+            WechatWorkRateLimiter.listen(((PostMigrationEvent) event).getFactory());
+            WechatWorkTokenManager.warmUp(((PostMigrationEvent) event).getFactory());
+          }
+        });
+  }
+
+  /**
+   * Drops the state cached for {@code model}. After an update only state built from the previous
+   * config is dropped, so tokens of an unchanged tenant survive; cached profiles of the corp are
+   * always dropped, they may have been cached with the previous TTL or mapping.
+   */
+  private void evict(KeycloakSession session, IdentityProviderModel model, boolean removed) {
+    if (!PROVIDER_ID.equals(model.getProviderId())) {
+      return;
+    }
+    String key = model.getInternalId() != null ? model.getInternalId() : model.getAlias();
+    CachedConfig cached = configs.remove(key);
+    WechatWorkProviderConfig previous = cached != null ? cached.config : null;
+    if (removed && previous == null) {
+      previous = new WechatWorkProviderConfig(model);
+    }
+    if (previous == null) {
+      return;
+    }
+    if (removed) {
+      // 更新后的设置由 WechatWorkApiClient.get 自行替换，只有移除时才无人再使用该客户端
+      WechatWorkApiClient.evict(previous);
+      WechatWorkRateLimiter.evict(previous);
+    }
+    WechatWorkProfileCache.evict(session, previous);
+    WechatWorkProviderConfig current = removed ? null : new WechatWorkProviderConfig(model);
+    if (current == null || !previous.getTenantKey().equals(current.getTenantKey())) {
+      WechatWorkTokenManager.evict(session, previous);
+      WechatWorkDepartmentTree.evict(previous);
+      if (current != null && !previous.getClientId().equals(current.getClientId())) {
+        WechatWorkRateLimiter.evict(previous);
+      }
+    }
+  }
+
+  private static List<Object> fingerprint(IdentityProviderModel model) {
+    return Arrays.asList(
+        model.getAlias(),
+        model.getDisplayName(),
+        model.isEnabled(),
+        model.isTrustEmail(),
+        model.isStoreToken(),
+        model.isAddReadTokenRoleOnCreate(),
+        model.isLinkOnly(),
+        model.isAuthenticateByDefault(),
+        model.getFirstBrokerLoginFlowId(),
+        model.getPostBrokerLoginFlowId());
   }
 
   @Override
@@ -61,6 +174,161 @@ public class WechatWorkIdentityProviderFactory
             .defaultValue("1000004")
             .add()
 
+            .property().name(WechatWorkProviderConfig.API_BASE_URL)
+            .label("企业微信 API 地址")
+            .helpText("企业微信服务端 API 的根地址，压测时可指向本地模拟服务")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(WechatWorkProviderConfig.DEFAULT_API_BASE_URL)
+            .add()
+
+            .property().name(WechatWorkProviderConfig.TOKEN_STORE)
+            .label("Access token 存储")
+            .helpText("local: 每个节点单独获取并缓存 access_token; cluster: 通过 Keycloak 集群缓存在所有节点间共享")
+            .type(ProviderConfigProperty.LIST_TYPE)
+            .options(WechatWorkProviderConfig.TOKEN_STORE_LOCAL, WechatWorkProviderConfig.TOKEN_STORE_CLUSTER)
+            .defaultValue(WechatWorkProviderConfig.TOKEN_STORE_LOCAL)
+            .add()
+
+            .property().name(WechatWorkProviderConfig.PROFILE_CACHE_TTL)
+            .label("成员详情缓存时间（秒）")
+            .helpText("user/get 返回的成员详情缓存多久，0 表示不缓存")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(String.valueOf(WechatWorkProviderConfig.DEFAULT_PROFILE_CACHE_TTL))
+            .add()
+
+            .property().name(WechatWorkProviderConfig.EXCHANGE_CACHE_TTL)
+            .label("令牌交换缓存时间（秒）")
+            .helpText("外部令牌交换验证过的成员在该时间内再次交换时不再调用 user/get，也不更新用户；0 表示不缓存")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(String.valueOf(WechatWorkProviderConfig.DEFAULT_EXCHANGE_CACHE_TTL))
+            .add()
+
+            .property().name(WechatWorkProviderConfig.API_CONNECT_TIMEOUT)
+            .label("企业微信 API 连接超时（毫秒）")
+            .helpText("连接 qyapi.weixin.qq.com 以及等待空闲连接的超时时间")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(String.valueOf(WechatWorkProviderConfig.DEFAULT_API_CONNECT_TIMEOUT))
+            .add()
+
+            .property().name(WechatWorkProviderConfig.API_READ_TIMEOUT)
+            .label("企业微信 API 读取超时（毫秒）")
+            .helpText("等待 qyapi.weixin.qq.com 返回数据的超时时间")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(String.valueOf(WechatWorkProviderConfig.DEFAULT_API_READ_TIMEOUT))
+            .add()
+
+            .property().name(WechatWorkProviderConfig.API_MAX_CONCURRENCY)
+            .label("企业微信 API 最大并发数")
+            .helpText("同时进行的企业微信 API 调用上限，也是连接池大小；超出时快速失败")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(String.valueOf(WechatWorkProviderConfig.DEFAULT_API_MAX_CONCURRENCY))
+            .add()
+
+            .property().name(WechatWorkProviderConfig.API_MAX_RESPONSE_SIZE)
+            .label("企业微信 API 响应大小上限（字节）")
+            .helpText("超过该大小的企业微信 API 响应将被拒绝")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(String.valueOf(WechatWorkProviderConfig.DEFAULT_API_MAX_RESPONSE_SIZE))
+            .add()
+
+            .property().name(WechatWorkProviderConfig.API_RATE_LIMITS)
+            .label("企业微信 API 频率限制（次/分钟）")
+            .helpText("逗号分隔的 接口=每分钟调用次数 列表，如 user/get=3000,*=10000；* 表示其它接口，0 表示不限制。"
+                + "配额由集群各节点均分，超出时短暂排队，仍不足则登录失败并提示稍后重试")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(WechatWorkProviderConfig.DEFAULT_API_RATE_LIMITS)
+            .add()
+
+            .property().name(WechatWorkProviderConfig.LAZY_ENRICHMENT)
+            .label("已关联用户跳过成员详情")
+            .helpText("已关联且在有效期内同步过的用户登录时不再调用 user/get，直接使用已保存的属性")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .defaultValue("false")
+            .add()
+
+            .property().name(WechatWorkProviderConfig.PROFILE_STALENESS_WINDOW)
+            .label("成员详情有效期（秒）")
+            .helpText("已保存的成员详情超过该时间后，下次登录重新从企业微信获取")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(String.valueOf(WechatWorkProviderConfig.DEFAULT_PROFILE_STALENESS_WINDOW))
+            .add()
+
+            .property().name(WechatWorkProviderConfig.DIRECTORY_SYNC_INTERVAL)
+            .label("通讯录同步间隔（秒）")
+            .helpText("定期把企业微信成员同步为 Keycloak 用户并建立关联，首次登录无需再创建用户；0 表示不同步。应用需有通讯录读取权限")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue("0")
+            .add()
+
+            .property().name(WechatWorkProviderConfig.DIRECTORY_SYNC_DEPARTMENT)
+            .label("通讯录同步部门 ID")
+            .helpText("同步该部门及其所有子部门的成员")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(WechatWorkProviderConfig.DEFAULT_DIRECTORY_SYNC_DEPARTMENT)
+            .add()
+
+            .property().name(WechatWorkProviderConfig.CONTACT_CALLBACK_TOKEN)
+            .label("通讯录回调 Token")
+            .helpText("企业微信后台“接收事件服务器”的 Token，URL 填写 /realms/{realm}/wechat-work/{alias}/contact；"
+                + "配置后成员变更实时写入已关联的用户")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .add()
+
+            .property().name(WechatWorkProviderConfig.CONTACT_CALLBACK_AES_KEY)
+            .label("通讯录回调 EncodingAESKey")
+            .helpText("企业微信后台“接收事件服务器”的 EncodingAESKey，43 个字符")
+            .type(ProviderConfigProperty.PASSWORD)
+            .secret(true)
+            .add()
+
+            .property().name(WechatWorkProviderConfig.USERNAME_FIELD)
+            .label("用户名字段")
+            .helpText("成员详情中映射为用户名的字段")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(WechatWorkProviderConfig.DEFAULT_USERNAME_FIELD)
+            .add()
+
+            .property().name(WechatWorkProviderConfig.EMAIL_FIELDS)
+            .label("邮箱字段")
+            .helpText("映射为邮箱的字段，逗号分隔，取第一个非空值")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(WechatWorkProviderConfig.DEFAULT_EMAIL_FIELDS)
+            .add()
+
+            .property().name(WechatWorkProviderConfig.FIRST_NAME_FIELD)
+            .label("名字段")
+            .helpText("映射为 firstName 的字段，留空则取邮箱 @ 前的部分")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .add()
+
+            .property().name(WechatWorkProviderConfig.LAST_NAME_FIELD)
+            .label("姓字段")
+            .helpText("映射为 lastName 的字段")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(WechatWorkProviderConfig.DEFAULT_LAST_NAME_FIELD)
+            .add()
+
+            .property().name(WechatWorkProviderConfig.ATTRIBUTE_FIELDS)
+            .label("用户属性字段")
+            .helpText("逗号分隔的 属性名=字段 列表，如 department=department,position=position,avatar=avatar；"
+                + "字段可以用 . 访问嵌套对象，数组以逗号连接")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .defaultValue(WechatWorkProviderConfig.DEFAULT_ATTRIBUTE_FIELDS)
+            .add()
+
             .build();
   }
+
+  private static final class CachedConfig {
+    private final List<Object> fingerprint;
+    private final Map<String, String> source;
+    private final WechatWorkProviderConfig config;
+
+    CachedConfig(
+        List<Object> fingerprint, Map<String, String> source, WechatWorkProviderConfig config) {
+      this.fingerprint = fingerprint;
+      this.source = source;
+      this.config = config;
+    }
+  }
 }
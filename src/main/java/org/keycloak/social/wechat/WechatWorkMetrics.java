@@ -0,0 +1,236 @@
+package org.keycloak.social.wechat;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters of the WeCom login pipeline.
+ *
+ * <p>Meters are registered with the global registry, which Keycloak's metrics endpoint scrapes
+ * when metrics are enabled; otherwise recording is a no-op.
+ */
+final class WechatWorkMetrics {
+  private static final String PREFIX = "keycloak.wechat.work.";
+
+  private static final MeterRegistry registry = Metrics.globalRegistry;
+
+  private static final ConcurrentMap<String, Timer> apiTimers = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Counter> errcodes = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Counter> apiRetries = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Counter> circuitRejections =
+      new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Counter> contactEvents = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Counter> rateLimited = new ConcurrentHashMap<>();
+
+  private static final Counter tokenCacheHits = tokenCache("hit");
+  private static final Counter tokenCacheMisses = tokenCache("miss");
+  private static final Counter tokenRefreshes =
+      Counter.builder(PREFIX + "token.refreshes")
+          .description("gettoken calls made to renew the access token")
+          .register(registry);
+  private static final Counter tokenRetries =
+      Counter.builder(PREFIX + "token.retries")
+          .description("WeCom calls retried after a 42001/40014 token error")
+          .register(registry);
+  private static final Counter circuitOpenings =
+      Counter.builder(PREFIX + "circuit.opened")
+          .description("times the circuit breaker of a corp opened")
+          .register(registry);
+  private static final Counter duplicateCallbacks =
+      Counter.builder(PREFIX + "callback.duplicates")
+          .description("OAuth callbacks reusing the userid resolved for the same code")
+          .register(registry);
+  private static final Timer exchangeSuccess = exchange("success");
+  private static final Timer exchangeFailure = exchange("failure");
+  private static final Timer callbackSuccess = callback("success");
+  private static final Timer callbackFailure = callback("failure");
+
+  static {
+    FunctionCounter.builder(
+            PREFIX + "profile.cache", WechatWorkProfileCache.class,
+            c -> WechatWorkProfileCache.getHitCount())
+        .tag("result", "hit")
+        .register(registry);
+    FunctionCounter.builder(
+            PREFIX + "profile.cache", WechatWorkProfileCache.class,
+            c -> WechatWorkProfileCache.getMissCount())
+        .tag("result", "miss")
+        .register(registry);
+    FunctionCounter.builder(
+            PREFIX + "exchange.cache", WechatWorkExchangeCache.class,
+            c -> WechatWorkExchangeCache.getHitCount())
+        .tag("result", "hit")
+        .register(registry);
+    FunctionCounter.builder(
+            PREFIX + "exchange.cache", WechatWorkExchangeCache.class,
+            c -> WechatWorkExchangeCache.getMissCount())
+        .tag("result", "miss")
+        .register(registry);
+    Gauge.builder(
+            PREFIX + "exchange.cache.hit.ratio", WechatWorkExchangeCache.class,
+            c ->
+                hitRatio(
+                    WechatWorkExchangeCache.getHitCount(), WechatWorkExchangeCache.getMissCount()))
+        .description("share of token exchanges served from the exchange cache")
+        .register(registry);
+    FunctionCounter.builder(
+            PREFIX + "user.writes.skipped", WechatWorkUserUpdates.class,
+            c -> WechatWorkUserUpdates.getSkippedWriteCount())
+        .description("user and attribute writes skipped because the value was unchanged")
+        .register(registry);
+  }
+
+  private WechatWorkMetrics() {}
+
+  /** Records the latency of one WeCom API call, {@code api} being e.g. {@code user/get}. */
+  static void recordApiCall(String api, long nanos) {
+    apiTimers
+        .computeIfAbsent(
+            api,
+            name ->
+                Timer.builder(PREFIX + "api.requests")
+                    .description("latency of WeCom API calls")
+                    .tag("api", name)
+                    .publishPercentileHistogram()
+                    .register(registry))
+        .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Counts the errcode returned by a WeCom API call. */
+  static void recordErrcode(String api, int errcode) {
+    errcodes
+        .computeIfAbsent(
+            api + ":" + errcode,
+            key ->
+                Counter.builder(PREFIX + "api.errcodes")
+                    .description("errcode values returned by WeCom APIs")
+                    .tag("api", api)
+                    .tag("errcode", String.valueOf(errcode))
+                    .register(registry))
+        .increment();
+  }
+
+  /** Counts a WeCom API call retried after a transient or rate-limit error. */
+  static void recordApiRetry(String api, WechatWorkErrcode outcome) {
+    apiRetries
+        .computeIfAbsent(
+            api + ":" + outcome,
+            key ->
+                Counter.builder(PREFIX + "api.retries")
+                    .description("WeCom API calls retried after a transient or rate-limit error")
+                    .tag("api", api)
+                    .tag("reason", outcome.name().toLowerCase())
+                    .register(registry))
+        .increment();
+  }
+
+  /** Counts a WeCom API call rejected because the circuit breaker is open. */
+  static void recordCircuitRejected(String api) {
+    circuitRejections
+        .computeIfAbsent(
+            api,
+            name ->
+                Counter.builder(PREFIX + "circuit.rejected")
+                    .description("WeCom API calls rejected by an open circuit breaker")
+                    .tag("api", name)
+                    .register(registry))
+        .increment();
+  }
+
+  /** Counts a WeCom API call that waited for, or was refused, a token of the rate limiter. */
+  static void recordRateLimited(String api, boolean queued) {
+    String result = queued ? "queued" : "rejected";
+    rateLimited
+        .computeIfAbsent(
+            api + ":" + result,
+            key ->
+                Counter.builder(PREFIX + "api.rate.limited")
+                    .description("WeCom API calls delayed or refused by the local rate limiter")
+                    .tag("api", api)
+                    .tag("result", result)
+                    .register(registry))
+        .increment();
+  }
+
+  static void recordCircuitOpened() {
+    circuitOpenings.increment();
+  }
+
+  static void recordTokenCacheHit() {
+    tokenCacheHits.increment();
+  }
+
+  static void recordTokenCacheMiss() {
+    tokenCacheMisses.increment();
+  }
+
+  static void recordTokenRefresh() {
+    tokenRefreshes.increment();
+  }
+
+  static void recordTokenRetry() {
+    tokenRetries.increment();
+  }
+
+  /** Counts a contact change event received from WeCom, e.g. {@code update_user}. */
+  static void recordContactEvent(String changeType) {
+    contactEvents
+        .computeIfAbsent(
+            changeType,
+            type ->
+                Counter.builder(PREFIX + "contact.events")
+                    .description("contact change events received from WeCom")
+                    .tag("type", type)
+                    .register(registry))
+        .increment();
+  }
+
+  static void recordDuplicateCallback() {
+    duplicateCallbacks.increment();
+  }
+
+  /** Records the duration of one external token exchange. */
+  static void recordExchange(long nanos, boolean success) {
+    (success ? exchangeSuccess : exchangeFailure).record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Records the end-to-end duration of one OAuth callback. */
+  static void recordCallback(long nanos, boolean success) {
+    (success ? callbackSuccess : callbackFailure).record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  private static Counter tokenCache(String result) {
+    return Counter.builder(PREFIX + "token.cache")
+        .description("access token cache lookups")
+        .tag("result", result)
+        .register(registry);
+  }
+
+  private static double hitRatio(long hits, long misses) {
+    long total = hits + misses;
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  private static Timer exchange(String outcome) {
+    return Timer.builder(PREFIX + "exchange")
+        .description("duration of WeCom external token exchanges")
+        .tag("outcome", outcome)
+        .publishPercentileHistogram()
+        .register(registry);
+  }
+
+  private static Timer callback(String outcome) {
+    return Timer.builder(PREFIX + "callback")
+        .description("duration of the WeCom OAuth callback")
+        .tag("outcome", outcome)
+        .publishPercentileHistogram()
+        .register(registry);
+  }
+}
@@ -0,0 +1,177 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Bounded TTL cache of {@code user/get} responses, keyed by corp id and userid.
+ *
+ * <p>The profiles of all corps share one node-local cache bounded by {@link #setMaxSize}, entries
+ * expire after the TTL configured per identity provider. A TTL of 0 disables caching. Entries are
+ * dropped on all nodes of the cluster when a contact change callback reports that the member
+ * changed, and all entries of a corp when one of its identity providers is updated or removed.
+ */
+final class WechatWorkProfileCache {
+  private static final String PROFILE_CACHE_NAME = "wechat_work_profile";
+  private static final String INVALIDATION_TASK = "wechat_work_profile_invalidation";
+  static final long DEFAULT_MAX_SIZE = 10000;
+
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+  private static volatile long maxSize = DEFAULT_MAX_SIZE;
+
+  private WechatWorkProfileCache() {}
+
+  /** Sets the number of profiles kept on this node, before the cache is first used. */
+  static void setMaxSize(long size) {
+    maxSize = size;
+  }
+
+  /**
+   * Returns the cached profile detail of {@code userId}, or {@code null} on a miss. A cached
+   * profile decoded with fewer fields than {@code fields} counts as a miss.
+   *
+   * @param fields top-level fields the caller needs, {@code null} for the whole response
+   */
+  static JsonNode get(WechatWorkProviderConfig config, String userId, Set<String> fields) {
+    if (config.getProfileCacheTtl() <= 0 || userId == null) {
+      return null;
+    }
+    CachedProfile cached = Profiles.cache.get(key(config.getClientId(), userId));
+    if (cached == null || !cached.covers(fields)) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return cached.profile;
+  }
+
+  /**
+   * Caches a successful {@code user/get} response; error responses are never cached.
+   *
+   * @param fields top-level fields {@code profile} was decoded with, {@code null} for all
+   */
+  static void put(
+      WechatWorkProviderConfig config, String userId, JsonNode profile, Set<String> fields) {
+    long ttl = config.getProfileCacheTtl();
+    if (ttl <= 0 || userId == null || profile == null || profile.path("errcode").asInt() != 0) {
+      return;
+    }
+    CachedProfile cached = new CachedProfile(profile, fields);
+    Profiles.cache.put(key(config.getClientId(), userId), cached, ttl, TimeUnit.SECONDS);
+  }
+
+  /** Drops the cached profile of {@code userId}, on this and every other node of the cluster. */
+  static void invalidate(KeycloakSession session, WechatWorkProviderConfig config, String userId) {
+    if (config.getProfileCacheTtl() <= 0 || userId == null) {
+      return;
+    }
+    invalidate(session, new Invalidation(config.getClientId(), userId));
+  }
+
+  /**
+   * Drops every cached profile of the corp of {@code config}, on this and every other node of the
+   * cluster. Called when one of its identity providers is updated or removed.
+   */
+  static void evict(KeycloakSession session, WechatWorkProviderConfig config) {
+    invalidate(session, new Invalidation(config.getClientId(), null));
+  }
+
+  private static void invalidate(KeycloakSession session, Invalidation invalidation) {
+    invalidation.apply();
+    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    if (cluster != null) {
+      cluster.notify(INVALIDATION_TASK, invalidation, true, ClusterProvider.DCNotify.ALL_DCS);
+    }
+  }
+
+  /** Starts applying invalidations sent by other nodes, once Keycloak has started. */
+  static void listen(KeycloakSessionFactory factory) {
+    KeycloakModelUtils.runJobInTransaction(
+        factory,
+        session -> {
+          ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+          if (cluster != null) {
+            cluster.registerListener(
+                INVALIDATION_TASK,
+                event -> {
+                  if (event instanceof Invalidation) {
+                    ((Invalidation) event).apply();
+                  }
+                });
+          }
+        });
+  }
+
+  static long getHitCount() {
+    return hits.sum();
+  }
+
+  static long getMissCount() {
+    return misses.sum();
+  }
+
+  private static String key(String corpId, String userId) {
+    return corpId + ":" + userId;
+  }
+
+  /** The single profile cache of this node, created on first use. */
+  private static final class Profiles {
+    static final Cache<String, CachedProfile> cache =
+        WechatWorkCaches.getOrCreate(
+            PROFILE_CACHE_NAME,
+            () -> {
+              ConfigurationBuilder builder = new ConfigurationBuilder();
+              builder.memory().maxCount(maxSize);
+              return builder.build();
+            });
+  }
+
+  /**
+   * Cluster event dropping the cached profile of one member, or of every member of a corp when
+   * {@code userId} is {@code null}.
+   */
+  static final class Invalidation implements ClusterEvent {
+    private static final long serialVersionUID = 2L;
+
+    private final String corpId;
+    private final String userId;
+
+    Invalidation(String corpId, String userId) {
+      this.corpId = corpId;
+      this.userId = userId;
+    }
+
+    void apply() {
+      if (userId != null) {
+        Profiles.cache.remove(key(corpId, userId));
+      } else {
+        String prefix = key(corpId, "");
+        Profiles.cache.keySet().removeIf(key -> key.startsWith(prefix));
+      }
+    }
+  }
+
+  private static final class CachedProfile {
+    private final JsonNode profile;
+    private final Set<String> fields;
+
+    CachedProfile(JsonNode profile, Set<String> fields) {
+      this.profile = profile;
+      this.fields = fields;
+    }
+
+    boolean covers(Set<String> required) {
+      return fields == null || (required != null && fields.containsAll(required));
+    }
+  }
+}
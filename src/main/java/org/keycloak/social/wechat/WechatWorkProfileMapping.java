@@ -0,0 +1,230 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+
+/**
+ * Compiled mapping from a {@code user/get} profile to a {@link BrokeredIdentityContext}.
+ *
+ * <p>Field specs come from the provider config: dotted paths such as {@code extattr.attrs} walk
+ * nested objects, arrays such as {@code department} become comma separated values. Each distinct
+ * spec is compiled once and shared by all logins.
+ */
+final class WechatWorkProfileMapping {
+  static final String ID_FIELD = "userid";
+
+  private static final ConcurrentMap<String, WechatWorkProfileMapping> compiled =
+      new ConcurrentHashMap<>();
+
+  private final FieldAccessor id;
+  private final FieldAccessor username;
+  private final FieldAccessor[] emails;
+  private final FieldAccessor firstName;
+  private final FieldAccessor lastName;
+  private final String[] attributeNames;
+  private final FieldAccessor[] attributes;
+  private final Set<String> profileFields;
+  private final Set<String> usernameSources;
+  private final Set<String> emailSources;
+  private final Set<String> firstNameSources;
+  private final Set<String> lastNameSources;
+  private final List<Set<String>> attributeSources;
+
+  private WechatWorkProfileMapping(
+      String username, String emails, String firstName, String lastName, String attributes) {
+    this.id = new FieldAccessor(ID_FIELD);
+    this.username = new FieldAccessor(username);
+    this.emails = split(emails).stream().map(FieldAccessor::new).toArray(FieldAccessor[]::new);
+    // 未配置时 firstName 取邮箱 @ 前的部分
+    this.firstName =
+        firstName == null || firstName.trim().isEmpty() ? null : new FieldAccessor(firstName);
+    this.lastName = new FieldAccessor(lastName);
+
+    List<String> specs = split(attributes);
+    this.attributeNames = new String[specs.size()];
+    this.attributes = new FieldAccessor[specs.size()];
+    for (int i = 0; i < specs.size(); i++) {
+      String spec = specs.get(i);
+      int eq = spec.indexOf('=');
+      attributeNames[i] = eq < 0 ? spec : spec.substring(0, eq).trim();
+      this.attributes[i] = new FieldAccessor(eq < 0 ? spec : spec.substring(eq + 1).trim());
+    }
+
+    Set<String> fields = new HashSet<>(Arrays.asList("errcode", "errmsg"));
+    fields.add(id.path[0]);
+    fields.add(this.username.path[0]);
+    fields.add(this.lastName.path[0]);
+    if (this.firstName != null) {
+      fields.add(this.firstName.path[0]);
+    }
+    for (FieldAccessor field : this.emails) {
+      fields.add(field.path[0]);
+    }
+    for (FieldAccessor field : this.attributes) {
+      fields.add(field.path[0]);
+    }
+    this.profileFields = Collections.unmodifiableSet(fields);
+
+    this.usernameSources = sources(this.username);
+    this.emailSources = sources(this.emails);
+    // 未配置 firstName 字段时由邮箱推导
+    this.firstNameSources = this.firstName == null ? this.emailSources : sources(this.firstName);
+    this.lastNameSources = sources(this.lastName);
+    List<Set<String>> attributeSources = new ArrayList<>(this.attributes.length);
+    for (FieldAccessor field : this.attributes) {
+      attributeSources.add(sources(field));
+    }
+    this.attributeSources = Collections.unmodifiableList(attributeSources);
+  }
+
+  /** Returns the compiled mapping of {@code config}, compiling it on first use. */
+  static WechatWorkProfileMapping of(WechatWorkProviderConfig config) {
+    String usernameField = config.getUsernameField();
+    String emailFields = config.getEmailFields();
+    String firstNameField = config.getFirstNameField();
+    String lastNameField = config.getLastNameField();
+    String attributeFields = config.getAttributeFields();
+    String key =
+        String.join(
+            "\n", usernameField, emailFields, firstNameField, lastNameField, attributeFields);
+    return compiled.computeIfAbsent(
+        key,
+        k ->
+            new WechatWorkProfileMapping(
+                usernameField, emailFields, firstNameField, lastNameField, attributeFields));
+  }
+
+  /** Maps {@code profile} to a new identity carrying username, email, names and attributes. */
+  BrokeredIdentityContext map(JsonNode profile) {
+    String userId = id.get(profile);
+    BrokeredIdentityContext identity = new BrokeredIdentityContext(userId);
+
+    String name = username.get(profile);
+    if (name != null) {
+      name = name.toLowerCase();
+    }
+    identity.setUsername(name);
+    identity.setBrokerUserId(name);
+    identity.setModelUsername(name);
+
+    String email = null;
+    for (FieldAccessor field : emails) {
+      email = field.get(profile);
+      if (email != null) {
+        break;
+      }
+    }
+    if (firstName != null) {
+      identity.setFirstName(firstName.get(profile));
+    } else if (email != null) {
+      int at = email.indexOf('@');
+      identity.setFirstName((at < 0 ? email : email.substring(0, at)).toLowerCase());
+    }
+    identity.setEmail(email);
+    identity.setLastName(lastName.get(profile));
+
+    for (int i = 0; i < attributes.length; i++) {
+      identity.setUserAttribute(attributeNames[i], attributes[i].get(profile));
+    }
+    return identity;
+  }
+
+  /** Top-level {@code user/get} fields read by this mapping, including errcode and errmsg. */
+  Set<String> getProfileFields() {
+    return profileFields;
+  }
+
+  /** Names of the user attributes written by this mapping. */
+  String[] getAttributeNames() {
+    return attributeNames;
+  }
+
+  /** Top-level profile fields the username is mapped from. */
+  Set<String> getUsernameSources() {
+    return usernameSources;
+  }
+
+  /** Top-level profile fields the email is mapped from. */
+  Set<String> getEmailSources() {
+    return emailSources;
+  }
+
+  /** Top-level profile fields the first name is mapped from, the email fields by default. */
+  Set<String> getFirstNameSources() {
+    return firstNameSources;
+  }
+
+  /** Top-level profile fields the last name is mapped from. */
+  Set<String> getLastNameSources() {
+    return lastNameSources;
+  }
+
+  /** Top-level profile fields the attribute {@code getAttributeNames()[index]} is mapped from. */
+  Set<String> getAttributeSources(int index) {
+    return attributeSources.get(index);
+  }
+
+  private static Set<String> sources(FieldAccessor... fields) {
+    Set<String> sources = new HashSet<>();
+    for (FieldAccessor field : fields) {
+      sources.add(field.path[0]);
+    }
+    return Collections.unmodifiableSet(sources);
+  }
+
+  private static List<String> split(String value) {
+    List<String> parts = new ArrayList<>();
+    if (value != null) {
+      for (String part : value.split(",")) {
+        if (!part.trim().isEmpty()) {
+          parts.add(part.trim());
+        }
+      }
+    }
+    return parts;
+  }
+
+  /** Reads one (possibly nested) profile field as text, {@code null} when missing or empty. */
+  private static final class FieldAccessor {
+    private final String[] path;
+
+    FieldAccessor(String field) {
+      this.path = field.trim().split("\\.");
+    }
+
+    String get(JsonNode profile) {
+      JsonNode node = profile;
+      for (String segment : path) {
+        if (node == null) {
+          return null;
+        }
+        node = node.get(segment);
+      }
+      if (node == null || node.isNull()) {
+        return null;
+      }
+      String value;
+      if (node.isArray()) {
+        StringBuilder joined = new StringBuilder();
+        for (JsonNode element : node) {
+          if (joined.length() > 0) {
+            joined.append(',');
+          }
+          joined.append(element.isValueNode() ? element.asText() : element.toString());
+        }
+        value = joined.toString();
+      } else {
+        value = node.isValueNode() ? node.asText() : node.toString();
+      }
+      return value.isEmpty() ? null : value;
+    }
+  }
+}
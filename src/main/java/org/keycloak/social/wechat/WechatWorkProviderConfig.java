@@ -1,12 +1,68 @@
 package org.keycloak.social.wechat;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import org.keycloak.broker.oidc.OAuth2IdentityProviderConfig;
 import org.keycloak.models.IdentityProviderModel;
 
 public class WechatWorkProviderConfig extends OAuth2IdentityProviderConfig {
 
+  public static final String API_BASE_URL = "apiBaseUrl";
+  public static final String DEFAULT_API_BASE_URL = "https://qyapi.weixin.qq.com/cgi-bin";
+  public static final String TOKEN_STORE = "tokenStore";
+  public static final String TOKEN_STORE_LOCAL = "local";
+  public static final String TOKEN_STORE_CLUSTER = "cluster";
+  public static final String PROFILE_CACHE_TTL = "profileCacheTtl";
+  public static final long DEFAULT_PROFILE_CACHE_TTL = 300;
+  public static final String EXCHANGE_CACHE_TTL = "exchangeCacheTtl";
+  public static final long DEFAULT_EXCHANGE_CACHE_TTL = 60;
+  public static final String API_CONNECT_TIMEOUT = "apiConnectTimeout";
+  public static final String API_READ_TIMEOUT = "apiReadTimeout";
+  public static final String API_MAX_CONCURRENCY = "apiMaxConcurrency";
+  public static final int DEFAULT_API_CONNECT_TIMEOUT = 2000;
+  public static final int DEFAULT_API_READ_TIMEOUT = 5000;
+  public static final int DEFAULT_API_MAX_CONCURRENCY = 64;
+  public static final String API_MAX_RESPONSE_SIZE = "apiMaxResponseSize";
+  public static final long DEFAULT_API_MAX_RESPONSE_SIZE = 1024 * 1024;
+  public static final String API_RATE_LIMITS = "apiRateLimits";
+  // 企业微信对每个企业调用单个接口的频率限制为每分钟 1 万次
+  public static final String DEFAULT_API_RATE_LIMITS = "*=10000";
+  public static final String LAZY_ENRICHMENT = "lazyEnrichment";
+  public static final String PROFILE_STALENESS_WINDOW = "profileStalenessWindow";
+  public static final long DEFAULT_PROFILE_STALENESS_WINDOW = 3600;
+  public static final String DIRECTORY_SYNC_INTERVAL = "directorySyncInterval";
+  public static final String DIRECTORY_SYNC_DEPARTMENT = "directorySyncDepartment";
+  public static final String DEFAULT_DIRECTORY_SYNC_DEPARTMENT = "1";
+  public static final String CONTACT_CALLBACK_TOKEN = "contactCallbackToken";
+  public static final String CONTACT_CALLBACK_AES_KEY = "contactCallbackAesKey";
+  public static final String USERNAME_FIELD = "usernameField";
+  public static final String EMAIL_FIELDS = "emailFields";
+  public static final String FIRST_NAME_FIELD = "firstNameField";
+  public static final String LAST_NAME_FIELD = "lastNameField";
+  public static final String ATTRIBUTE_FIELDS = "attributeFields";
+  public static final String DEFAULT_USERNAME_FIELD = "userid";
+  public static final String DEFAULT_EMAIL_FIELDS = "biz_mail,email";
+  public static final String DEFAULT_LAST_NAME_FIELD = "name";
+  // mobile: 手机号码，第三方仅通讯录应用可获取
+  // gender: 性别。0表示未定义，1表示男性，2表示女性
+  // status: 激活状态: 1=已激活，2=已禁用，4=未激活
+  // enable: 成员启用状态。1表示启用的成员，0表示被禁用。注意，服务商调用接口不会返回此字段
+  public static final String DEFAULT_ATTRIBUTE_FIELDS =
+      "mobile=mobile,gender=gender,status=status,enable=enable,userid=userid";
+
+  private volatile WechatWorkProfileMapping profileMapping;
+  private volatile String tenantKey;
+  private volatile WechatWorkAuthorizationUrls authorizationUrls;
+
   public WechatWorkProviderConfig(IdentityProviderModel model) {
     super(model);
+    setAuthorizationUrl(WechatWorkIdentityProvider.AUTH_URL);
+    setQrcodeAuthorizationUrl(WechatWorkIdentityProvider.QRCODE_AUTH_URL);
+    setTokenUrl(getApiUrl(WechatWorkIdentityProvider.TOKEN_PATH));
+    if (getDefaultScope() == null || getDefaultScope().isEmpty()) {
+      setDefaultScope(WechatWorkIdentityProvider.DEFAULT_SCOPE);
+    }
   }
 
   public WechatWorkProviderConfig() {
@@ -28,4 +84,277 @@ public class WechatWorkProviderConfig extends OAuth2IdentityProviderConfig {
   public void setQrcodeAuthorizationUrl(String qrcodeAuthorizationUrl) {
     getConfig().put("qrcodeAuthorizationUrl", qrcodeAuthorizationUrl);
   }
+
+  /** Base URL of the WeCom server API, e.g. a local simulator when load testing. */
+  public String getApiBaseUrl() {
+    String url = getString(API_BASE_URL, DEFAULT_API_BASE_URL).trim();
+    return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+  }
+
+  public void setApiBaseUrl(String url) {
+    getConfig().put(API_BASE_URL, url);
+  }
+
+  /** URL of the server API at {@code path}, relative to {@link #getApiBaseUrl()}. */
+  String getApiUrl(String path) {
+    return getApiBaseUrl() + path;
+  }
+
+  /** Where access tokens live: {@code local} per node, or {@code cluster} in Keycloak's work cache. */
+  public String getTokenStore() {
+    String tokenStore = getConfig().get(TOKEN_STORE);
+    return tokenStore == null || tokenStore.isEmpty() ? TOKEN_STORE_LOCAL : tokenStore;
+  }
+
+  public void setTokenStore(String tokenStore) {
+    getConfig().put(TOKEN_STORE, tokenStore);
+  }
+
+  public boolean isClusterTokenStore() {
+    return TOKEN_STORE_CLUSTER.equals(getTokenStore());
+  }
+
+  /** Seconds a {@code user/get} response stays cached, 0 disables the profile cache. */
+  public long getProfileCacheTtl() {
+    return getLong(PROFILE_CACHE_TTL, DEFAULT_PROFILE_CACHE_TTL);
+  }
+
+  public void setProfileCacheTtl(long ttl) {
+    getConfig().put(PROFILE_CACHE_TTL, String.valueOf(ttl));
+  }
+
+  /**
+   * Seconds a member validated by an external token exchange is trusted without calling {@code
+   * user/get} again, 0 disables the cache.
+   */
+  public long getExchangeCacheTtl() {
+    return getLong(EXCHANGE_CACHE_TTL, DEFAULT_EXCHANGE_CACHE_TTL);
+  }
+
+  public void setExchangeCacheTtl(long ttl) {
+    getConfig().put(EXCHANGE_CACHE_TTL, String.valueOf(ttl));
+  }
+
+  /** Milliseconds to connect to WeCom, also the longest wait for a free connection. */
+  public int getApiConnectTimeout() {
+    return (int) getLong(API_CONNECT_TIMEOUT, DEFAULT_API_CONNECT_TIMEOUT);
+  }
+
+  public void setApiConnectTimeout(int timeout) {
+    getConfig().put(API_CONNECT_TIMEOUT, String.valueOf(timeout));
+  }
+
+  /** Milliseconds to wait for WeCom response data. */
+  public int getApiReadTimeout() {
+    return (int) getLong(API_READ_TIMEOUT, DEFAULT_API_READ_TIMEOUT);
+  }
+
+  public void setApiReadTimeout(int timeout) {
+    getConfig().put(API_READ_TIMEOUT, String.valueOf(timeout));
+  }
+
+  /** Maximum concurrent WeCom API calls, which is also the size of the connection pool. */
+  public int getApiMaxConcurrency() {
+    return (int) Math.max(1, getLong(API_MAX_CONCURRENCY, DEFAULT_API_MAX_CONCURRENCY));
+  }
+
+  public void setApiMaxConcurrency(int maxConcurrency) {
+    getConfig().put(API_MAX_CONCURRENCY, String.valueOf(maxConcurrency));
+  }
+
+  /** Largest WeCom API response body accepted, in bytes. */
+  public long getApiMaxResponseSize() {
+    return getLong(API_MAX_RESPONSE_SIZE, DEFAULT_API_MAX_RESPONSE_SIZE);
+  }
+
+  public void setApiMaxResponseSize(long bytes) {
+    getConfig().put(API_MAX_RESPONSE_SIZE, String.valueOf(bytes));
+  }
+
+  /**
+   * Comma separated {@code api=calls per minute} quotas of the corp, e.g. {@code
+   * user/get=3000,*=10000}; {@code *} applies to the other APIs and 0 disables a limit.
+   */
+  public String getApiRateLimits() {
+    return getString(API_RATE_LIMITS, DEFAULT_API_RATE_LIMITS);
+  }
+
+  public void setApiRateLimits(String rateLimits) {
+    getConfig().put(API_RATE_LIMITS, rateLimits);
+  }
+
+  /** Whether linked users synced within the staleness window skip the {@code user/get} call. */
+  public boolean isLazyEnrichment() {
+    return Boolean.parseBoolean(getConfig().get(LAZY_ENRICHMENT));
+  }
+
+  public void setLazyEnrichment(boolean lazyEnrichment) {
+    getConfig().put(LAZY_ENRICHMENT, String.valueOf(lazyEnrichment));
+  }
+
+  /** Seconds after which the stored profile of a linked user is refreshed from WeCom. */
+  public long getProfileStalenessWindow() {
+    return getLong(PROFILE_STALENESS_WINDOW, DEFAULT_PROFILE_STALENESS_WINDOW);
+  }
+
+  public void setProfileStalenessWindow(long seconds) {
+    getConfig().put(PROFILE_STALENESS_WINDOW, String.valueOf(seconds));
+  }
+
+  /** Seconds between directory syncs of the WeCom members into the realm, 0 disables the sync. */
+  public long getDirectorySyncInterval() {
+    return getLong(DIRECTORY_SYNC_INTERVAL, 0);
+  }
+
+  public void setDirectorySyncInterval(long seconds) {
+    getConfig().put(DIRECTORY_SYNC_INTERVAL, String.valueOf(seconds));
+  }
+
+  /** Id of the WeCom department whose subtree the directory sync covers. */
+  public String getDirectorySyncDepartment() {
+    return getString(DIRECTORY_SYNC_DEPARTMENT, DEFAULT_DIRECTORY_SYNC_DEPARTMENT).trim();
+  }
+
+  public void setDirectorySyncDepartment(String departmentId) {
+    getConfig().put(DIRECTORY_SYNC_DEPARTMENT, departmentId);
+  }
+
+  /** Token of the contact change callback, as set up in the WeCom admin console. */
+  public String getContactCallbackToken() {
+    return getConfig().get(CONTACT_CALLBACK_TOKEN);
+  }
+
+  public void setContactCallbackToken(String token) {
+    getConfig().put(CONTACT_CALLBACK_TOKEN, token);
+  }
+
+  /** EncodingAESKey of the contact change callback, 43 base64 characters. */
+  public String getContactCallbackAesKey() {
+    return getConfig().get(CONTACT_CALLBACK_AES_KEY);
+  }
+
+  public void setContactCallbackAesKey(String aesKey) {
+    getConfig().put(CONTACT_CALLBACK_AES_KEY, aesKey);
+  }
+
+  /** Whether the contact change callback is configured. */
+  public boolean isContactCallbackEnabled() {
+    String token = getContactCallbackToken();
+    String aesKey = getContactCallbackAesKey();
+    return token != null && !token.trim().isEmpty() && aesKey != null && !aesKey.trim().isEmpty();
+  }
+
+  /** Profile field mapped to the username. */
+  public String getUsernameField() {
+    return getString(USERNAME_FIELD, DEFAULT_USERNAME_FIELD);
+  }
+
+  public void setUsernameField(String field) {
+    getConfig().put(USERNAME_FIELD, field);
+  }
+
+  /** Comma separated profile fields tried in order for the email. */
+  public String getEmailFields() {
+    return getString(EMAIL_FIELDS, DEFAULT_EMAIL_FIELDS);
+  }
+
+  public void setEmailFields(String fields) {
+    getConfig().put(EMAIL_FIELDS, fields);
+  }
+
+  /** Profile field mapped to the first name, empty to use the part of the email before @. */
+  public String getFirstNameField() {
+    return getString(FIRST_NAME_FIELD, "");
+  }
+
+  public void setFirstNameField(String field) {
+    getConfig().put(FIRST_NAME_FIELD, field);
+  }
+
+  public String getLastNameField() {
+    return getString(LAST_NAME_FIELD, DEFAULT_LAST_NAME_FIELD);
+  }
+
+  public void setLastNameField(String field) {
+    getConfig().put(LAST_NAME_FIELD, field);
+  }
+
+  /** Comma separated {@code attribute=field} pairs copied from the profile to user attributes. */
+  public String getAttributeFields() {
+    return getString(ATTRIBUTE_FIELDS, DEFAULT_ATTRIBUTE_FIELDS);
+  }
+
+  public void setAttributeFields(String fields) {
+    getConfig().put(ATTRIBUTE_FIELDS, fields);
+  }
+
+  /** Mapping plan compiled from this config, built on first use. */
+  WechatWorkProfileMapping getProfileMapping() {
+    WechatWorkProfileMapping mapping = profileMapping;
+    if (mapping == null) {
+      mapping = WechatWorkProfileMapping.of(this);
+      profileMapping = mapping;
+    }
+    return mapping;
+  }
+
+  /** Authorization URL templates compiled from this config, built on first use. */
+  WechatWorkAuthorizationUrls getAuthorizationUrls() {
+    WechatWorkAuthorizationUrls urls = authorizationUrls;
+    if (urls == null) {
+      urls = WechatWorkAuthorizationUrls.of(this);
+      authorizationUrls = urls;
+    }
+    return urls;
+  }
+
+  /** Key of the state owned by this identity provider alone: its internal id, or its alias. */
+  String getInstanceKey() {
+    return getInternalId() != null ? getInternalId() : getAlias();
+  }
+
+  /**
+   * Key of the per-tenant state shared by all provider instances: corp id, agent id and a digest
+   * of the secret, so rotating the secret never reuses state fetched with the old one.
+   */
+  String getTenantKey() {
+    String key = tenantKey;
+    if (key == null) {
+      key = getClientId() + ":" + getAgentId() + ":" + digest(getClientSecret());
+      tenantKey = key;
+    }
+    return key;
+  }
+
+  private static String digest(String value) {
+    try {
+      byte[] hash =
+          MessageDigest.getInstance("SHA-256")
+              .digest(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (int i = 0; i < 8; i++) {
+        hex.append(String.format("%02x", hash[i]));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private String getString(String key, String defaultValue) {
+    String value = getConfig().get(key);
+    return value == null || value.trim().isEmpty() ? defaultValue : value;
+  }
+
+  private long getLong(String key, long defaultValue) {
+    String value = getConfig().get(key);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
 }
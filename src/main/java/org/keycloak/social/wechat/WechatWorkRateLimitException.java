@@ -0,0 +1,11 @@
+package org.keycloak.social.wechat;
+
+import org.keycloak.broker.provider.IdentityBrokerException;
+
+/** A WeCom API call refused locally because the corp used up its quota for the API. */
+class WechatWorkRateLimitException extends IdentityBrokerException {
+
+  WechatWorkRateLimitException(String message) {
+    super(message);
+  }
+}
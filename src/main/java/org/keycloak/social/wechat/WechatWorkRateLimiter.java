@@ -0,0 +1,210 @@
+package org.keycloak.social.wechat;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.remoting.transport.Address;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Token buckets keeping the calls of a corp below the WeCom quota of each API.
+ *
+ * <p>Quotas are configured in calls per minute per corp and API with {@link
+ * WechatWorkProviderConfig#getApiRateLimits()}. The quota is shared by the nodes of the cluster:
+ * each node refills its buckets with its share of it, the quota divided by the current number of
+ * cluster members, so no coordination is needed per call. A call finding the bucket empty waits
+ * for its token when that takes less than the client's acquire timeout, and fails fast with a
+ * {@link WechatWorkRateLimitException} otherwise.
+ *
+ * <p>All identity providers of a corp share its buckets. When they configure different quotas
+ * the strictest one of each API applies, so together they never exceed any of them. A corp's
+ * limiter is dropped when its last identity provider is removed.
+ */
+final class WechatWorkRateLimiter {
+  private static final Logger logger = Logger.getLogger(WechatWorkRateLimiter.class);
+
+  // 未单独配置的接口使用的键
+  static final String ANY_API = "*";
+
+  private static final ConcurrentMap<String, WechatWorkRateLimiter> limiters =
+      new ConcurrentHashMap<>();
+  // 当前集群节点数，未接入集群时为 1
+  private static volatile IntSupplier clusterSize = () -> 1;
+
+  private final String corpId;
+  // 各身份提供者配置的配额，按 WechatWorkProviderConfig#getInstanceKey 区分
+  private final ConcurrentMap<String, Map<String, Long>> sources = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+  private WechatWorkRateLimiter(String corpId) {
+    this.corpId = corpId;
+  }
+
+  /**
+   * Returns the limiter of the corp of {@code config}, taking the quotas of its identity provider
+   * into account.
+   */
+  static WechatWorkRateLimiter of(WechatWorkProviderConfig config) {
+    return limiters.compute(
+        config.getClientId(),
+        (corpId, current) -> {
+          WechatWorkRateLimiter limiter =
+              current != null ? current : new WechatWorkRateLimiter(corpId);
+          limiter.register(config.getInstanceKey(), config.getApiRateLimits());
+          return limiter;
+        });
+  }
+
+  /** Forgets the quotas of the identity provider of {@code config}, after it was removed. */
+  static void evict(WechatWorkProviderConfig config) {
+    limiters.computeIfPresent(
+        config.getClientId(),
+        (corpId, limiter) -> {
+          limiter.sources.remove(config.getInstanceKey());
+          return limiter.sources.isEmpty() ? null : limiter;
+        });
+  }
+
+  private void register(String instanceKey, String rateLimits) {
+    Map<String, Long> quotas = parse(rateLimits);
+    Map<String, Long> previous = sources.put(instanceKey, quotas);
+    if (!quotas.equals(previous)
+        && sources.values().stream().anyMatch(other -> !other.equals(quotas))) {
+      logger.warnf(
+          "identity providers of corp %s configure different API rate limits, "
+              + "the strictest limit of each API applies",
+          corpId);
+    }
+  }
+
+  /** The strictest positive quota of {@code api} among the identity providers, 0 for none. */
+  private long quota(String api) {
+    long strictest = 0;
+    for (Map<String, Long> quotas : sources.values()) {
+      Long limit = quotas.containsKey(api) ? quotas.get(api) : quotas.get(ANY_API);
+      if (limit != null && limit > 0 && (strictest == 0 || limit < strictest)) {
+        strictest = limit;
+      }
+    }
+    return strictest;
+  }
+
+  /** Starts sizing the per-node share of the quotas by the members of Keycloak's cluster. */
+  static void listen(KeycloakSessionFactory factory) {
+    KeycloakModelUtils.runJobInTransaction(
+        factory,
+        session -> {
+          InfinispanConnectionProvider provider =
+              session.getProvider(InfinispanConnectionProvider.class);
+          if (provider == null) {
+            return;
+          }
+          EmbeddedCacheManager cacheManager =
+              provider.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME).getCacheManager();
+          clusterSize =
+              () -> {
+                List<Address> members = cacheManager.getMembers();
+                return members == null ? 1 : Math.max(1, members.size());
+              };
+        });
+  }
+
+  /**
+   * Takes a token for one call of {@code api}, waiting at most {@code maxWaitMillis} for it.
+   *
+   * @throws WechatWorkRateLimitException when the quota of {@code api} is used up
+   */
+  void acquire(String api, long maxWaitMillis) {
+    long quota = quota(api);
+    if (quota <= 0) {
+      return;
+    }
+    long waitNanos =
+        buckets
+            .computeIfAbsent(api, k -> new Bucket())
+            .reserve(quota, clusterSize.getAsInt(), TimeUnit.MILLISECONDS.toNanos(maxWaitMillis));
+    if (waitNanos < 0) {
+      WechatWorkMetrics.recordRateLimited(api, false);
+      throw new WechatWorkRateLimitException(
+          "WeCom API " + api + " of corp " + corpId + " reached its quota of " + quota
+              + " calls per minute");
+    }
+    if (waitNanos > 0) {
+      WechatWorkMetrics.recordRateLimited(api, true);
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new WechatWorkRateLimitException("interrupted while waiting for " + api);
+      }
+    }
+  }
+
+  /** Parses {@code api=calls per minute} pairs, e.g. {@code user/get=3000,*=10000}. */
+  static Map<String, Long> parse(String rateLimits) {
+    Map<String, Long> quotas = new HashMap<>();
+    if (rateLimits == null) {
+      return quotas;
+    }
+    for (String pair : rateLimits.split(",")) {
+      if (pair.trim().isEmpty()) {
+        continue;
+      }
+      int index = pair.indexOf('=');
+      try {
+        if (index < 0) {
+          throw new NumberFormatException(pair);
+        }
+        quotas.put(
+            pair.substring(0, index).trim(), Long.parseLong(pair.substring(index + 1).trim()));
+      } catch (NumberFormatException e) {
+        logger.warnf("ignoring invalid WeCom API rate limit %s", pair.trim());
+      }
+    }
+    return quotas;
+  }
+
+  /** Token bucket of one API, refilled with this node's share of the quota. */
+  private static final class Bucket {
+    private double tokens;
+    private long refilledAt;
+    private boolean filled;
+
+    /**
+     * Reserves a token, returning how long to wait for it, or -1 when that is longer than {@code
+     * maxWaitNanos}.
+     */
+    synchronized long reserve(long quota, int nodes, long maxWaitNanos) {
+      // 每个节点每秒可用的调用次数，桶容量为一秒的量
+      double perSecond = Math.max(quota / 60.0 / nodes, 1e-3);
+      double capacity = Math.max(1, perSecond);
+      long now = System.nanoTime();
+      if (!filled) {
+        tokens = capacity;
+        filled = true;
+      } else {
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * perSecond / 1e9);
+      }
+      refilledAt = now;
+      if (tokens >= 1) {
+        tokens -= 1;
+        return 0;
+      }
+      long waitNanos = (long) Math.ceil((1 - tokens) / perSecond * 1e9);
+      if (waitNanos > maxWaitNanos) {
+        return -1;
+      }
+      // 预占下一个令牌，后来的调用排在其后
+      tokens -= 1;
+      return waitNanos;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Streaming decoder for WeCom API responses.
+ *
+ * <p>Only the requested top-level fields of the response object are materialized, everything else
+ * is skipped token by token without building a tree. The response body is limited to a maximum
+ * size so a misbehaving endpoint cannot make Keycloak buffer arbitrary amounts of data.
+ */
+final class WechatWorkResponseDecoder {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private WechatWorkResponseDecoder() {}
+
+  /**
+   * Decodes a JSON object from {@code in}.
+   *
+   * @param fields top-level fields to keep, {@code null} to keep the whole response
+   * @param maxBytes maximum number of bytes read from {@code in}
+   */
+  static JsonNode decode(InputStream in, Set<String> fields, long maxBytes) throws IOException {
+    InputStream limited = new LimitedInputStream(in, maxBytes);
+    try (JsonParser parser = mapper.getFactory().createParser(limited)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("WeCom response is not a JSON object");
+      }
+      return readObject(parser, fields);
+    }
+  }
+
+  /**
+   * Decodes a JSON object from {@code in}, handing every element of its top-level array {@code
+   * arrayField} to {@code elements} as soon as it is parsed, so arbitrarily long member lists are
+   * never held in memory at once.
+   *
+   * @param elementFields fields of each element to keep, {@code null} to keep whole elements
+   * @return the other top-level fields, e.g. {@code errcode} and {@code errmsg}
+   */
+  static JsonNode decodeArray(
+      InputStream in, String arrayField, Set<String> elementFields, Consumer<JsonNode> elements)
+      throws IOException {
+    try (JsonParser parser = mapper.getFactory().createParser(in)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("WeCom response is not a JSON object");
+      }
+      ObjectNode result = JsonNodeFactory.instance.objectNode();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (!arrayField.equals(name)) {
+          result.set(name, parser.<JsonNode>readValueAsTree());
+        } else if (token == JsonToken.START_ARRAY) {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            elements.accept(readObject(parser, elementFields));
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+      return result;
+    }
+  }
+
+  private static JsonNode readObject(JsonParser parser, Set<String> fields) throws IOException {
+    if (fields == null) {
+      return parser.readValueAsTree();
+    }
+    ObjectNode result = JsonNodeFactory.instance.objectNode();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if (fields.contains(name)) {
+        result.set(name, parser.<JsonNode>readValueAsTree());
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return result;
+  }
+
+  private static final class LimitedInputStream extends FilterInputStream {
+    private final long maxBytes;
+    private long count;
+
+    LimitedInputStream(InputStream in, long maxBytes) {
+      super(in);
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int n = super.read(buffer, offset, length);
+      if (n > 0) {
+        count(n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count(skipped);
+      return skipped;
+    }
+
+    private void count(long n) throws IOException {
+      count += n;
+      if (count > maxBytes) {
+        throw new IOException("WeCom response exceeds " + maxBytes + " bytes");
+      }
+    }
+  }
+}
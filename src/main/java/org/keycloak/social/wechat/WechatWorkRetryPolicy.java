@@ -0,0 +1,159 @@
+package org.keycloak.social.wechat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.IdentityBrokerException;
+
+/**
+ * Retry budget and circuit breaker of one corp, shared by all its agents.
+ *
+ * <p>Calls failing with a {@link WechatWorkErrcode#isFailure() failure} are retried after a
+ * jittered exponential backoff, as long as the retry budget lasts: every call adds a tenth of a
+ * retry, so retries never add more than about 10% to the traffic of a struggling WeCom.
+ *
+ * <p>After {@link #FAILURE_THRESHOLD} failed attempts in a row the circuit opens and calls fail
+ * fast for {@link #OPEN_MILLIS}. Then a single probe call is let through, closing the circuit when
+ * it succeeds and opening it again otherwise.
+ */
+final class WechatWorkRetryPolicy {
+  private static final Logger logger = Logger.getLogger(WechatWorkRetryPolicy.class);
+
+  // 瞬时错误（-1、超时等）最多重试次数及退避基准
+  private static final int MAX_TRANSIENT_RETRIES = 2;
+  private static final long TRANSIENT_BACKOFF_MILLIS = 100;
+  // 频率限制最多重试次数及退避基准
+  private static final int MAX_RATE_LIMITED_RETRIES = 1;
+  private static final long RATE_LIMITED_BACKOFF_MILLIS = 500;
+  private static final long MAX_BACKOFF_MILLIS = 1000;
+  // 重试预算，以千分之一次重试为单位：每次调用存入 0.1 次，最多积累 10 次
+  private static final long BUDGET_PER_CALL = 100;
+  private static final long BUDGET_PER_RETRY = 1000;
+  private static final long MAX_BUDGET = 10 * BUDGET_PER_RETRY;
+  // 连续失败多少次后熔断，以及熔断持续时间
+  static final int FAILURE_THRESHOLD = 10;
+  static final long OPEN_MILLIS = 30_000;
+
+  private static final ConcurrentMap<String, WechatWorkRetryPolicy> policies =
+      new ConcurrentHashMap<>();
+
+  private final String corpId;
+  private final AtomicLong budget = new AtomicLong(MAX_BUDGET);
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final AtomicBoolean probing = new AtomicBoolean();
+  private volatile long openUntil;
+
+  private WechatWorkRetryPolicy(String corpId) {
+    this.corpId = corpId;
+  }
+
+  static WechatWorkRetryPolicy of(WechatWorkProviderConfig config) {
+    return policies.computeIfAbsent(config.getClientId(), WechatWorkRetryPolicy::new);
+  }
+
+  /**
+   * Admits one attempt of {@code api}, failing fast while the circuit is open. The first attempt
+   * of a call also adds to the retry budget.
+   */
+  void acquire(String api, int attempt) {
+    long until = openUntil;
+    if (until != 0
+        && (System.currentTimeMillis() < until || !probing.compareAndSet(false, true))) {
+      WechatWorkMetrics.recordCircuitRejected(api);
+      throw new IdentityBrokerException(
+          "WeCom API of corp " + corpId + " is unavailable, retry later");
+    }
+    if (attempt == 0) {
+      budget.accumulateAndGet(
+          BUDGET_PER_CALL, (current, add) -> Math.min(MAX_BUDGET, current + add));
+    }
+  }
+
+  /** Gives back an attempt admitted by {@link #acquire} that was not made, such as the probe. */
+  void cancel() {
+    if (openUntil != 0) {
+      probing.set(false);
+    }
+  }
+
+  /** Records the outcome of an attempt; token and permanent errors prove WeCom is reachable. */
+  void record(WechatWorkErrcode outcome) {
+    long until = openUntil;
+    if (until != 0 && System.currentTimeMillis() < until) {
+      // 熔断前已发出的调用，其结果不影响熔断状态
+      return;
+    }
+    if (!outcome.isFailure()) {
+      consecutiveFailures.set(0);
+      if (until != 0) {
+        openUntil = 0;
+        probing.set(false);
+        logger.infof("WeCom API of corp %s recovered, closing circuit", corpId);
+      }
+      return;
+    }
+    if (until != 0 || consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD) {
+      open();
+    }
+  }
+
+  /**
+   * Whether attempt {@code attempt} (0 for the first) ending with {@code outcome} is retried,
+   * withdrawing the retry from the budget.
+   */
+  boolean shouldRetry(WechatWorkErrcode outcome, int attempt) {
+    int maxRetries;
+    if (outcome == WechatWorkErrcode.TRANSIENT) {
+      maxRetries = MAX_TRANSIENT_RETRIES;
+    } else if (outcome == WechatWorkErrcode.RATE_LIMITED) {
+      maxRetries = MAX_RATE_LIMITED_RETRIES;
+    } else {
+      return false;
+    }
+    if (attempt >= maxRetries || openUntil != 0) {
+      return false;
+    }
+    long current;
+    do {
+      current = budget.get();
+      if (current < BUDGET_PER_RETRY) {
+        return false;
+      }
+    } while (!budget.compareAndSet(current, current - BUDGET_PER_RETRY));
+    return true;
+  }
+
+  /**
+   * Sleeps before retry {@code attempt + 1}: between half and all of an exponential backoff, so
+   * callers failing together do not retry together.
+   */
+  void backoff(WechatWorkErrcode outcome, int attempt) {
+    long base =
+        outcome == WechatWorkErrcode.RATE_LIMITED
+            ? RATE_LIMITED_BACKOFF_MILLIS
+            : TRANSIENT_BACKOFF_MILLIS;
+    long cap = Math.min(MAX_BACKOFF_MILLIS, base << attempt);
+    try {
+      Thread.sleep(cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IdentityBrokerException("interrupted while retrying WeCom API", e);
+    }
+  }
+
+  private void open() {
+    boolean wasClosed = openUntil == 0;
+    openUntil = System.currentTimeMillis() + OPEN_MILLIS;
+    probing.set(false);
+    consecutiveFailures.set(0);
+    if (wasClosed) {
+      WechatWorkMetrics.recordCircuitOpened();
+      logger.warnf(
+          "WeCom API of corp %s keeps failing, rejecting calls for %d ms", corpId, OPEN_MILLIS);
+    }
+  }
+}
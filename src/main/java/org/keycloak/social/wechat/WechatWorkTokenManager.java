@@ -0,0 +1,346 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Access token holder shared by all provider instances of a corp/agent.
+ *
+ * <p>Only one {@code gettoken} call is in flight per corp/agent, concurrent callers wait for its
+ * result. Every fetched token schedules a background refresh shortly before {@code expires_in}
+ * runs out, so login threads rarely see a cache miss.
+ *
+ * <p>Tokens are keyed by corp, agent and a digest of the secret. They are kept in a single bounded
+ * node-local cache that drops tokens left unused for an hour, or in Keycloak's replicated work
+ * cache when the provider is configured with the {@code cluster} token store.
+ *
+ * <p>At startup the tokens of all enabled providers are fetched in the background, so the first
+ * logins after a restart do not wait for {@code gettoken}.
+ */
+final class WechatWorkTokenManager {
+  private static final Logger logger = Logger.getLogger(WechatWorkTokenManager.class);
+
+  private static final String ACCESS_TOKEN_KEY = "access_token";
+  private static final String ACCESS_TOKEN_CACHE_KEY = "wechat_work_sso_access_token";
+  private static final String WECHAT_WORK_CACHE_NAME = "wechat_work_sso";
+  private static final Set<String> TOKEN_FIELDS =
+      Collections.unmodifiableSet(
+          new HashSet<>(Arrays.asList("errcode", "errmsg", ACCESS_TOKEN_KEY, "expires_in")));
+
+  // 等待其它线程刷新 token 的最长时间
+  private static final long REFRESH_WAIT_SECONDS = 10;
+  // 在 expires_in 到期前多久提前刷新
+  private static final long REFRESH_AHEAD_SECONDS = 300;
+  // 后台刷新失败后的重试间隔
+  private static final long REFRESH_RETRY_SECONDS = 30;
+  // 本地 token 缓存最多保存的企业/应用数量
+  private static final long MAX_LOCAL_TOKENS = 1000;
+  // 超过该时间未被使用的 token 从本地缓存中移除，也不再后台刷新
+  private static final long TOKEN_MAX_IDLE_SECONDS = 3600;
+  // 启动预热时同时获取 token 的企业/应用数量
+  private static final int WARM_UP_CONCURRENCY = 4;
+  // 启动预热的最长时间，超时后剩余的 token 留到首次登录时获取
+  private static final long WARM_UP_TIMEOUT_SECONDS = 120;
+  private static final ConcurrentMap<String, CompletableFuture<String>> refreshes =
+      new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, ScheduledFuture<?>> scheduledRefreshes =
+      new ConcurrentHashMap<>();
+  private static final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "wechat-work-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private WechatWorkTokenManager() {}
+
+  /** Returns the cached token, or joins the single refresh of this corp/agent on a miss. */
+  static String getAccessToken(KeycloakSession session, WechatWorkProviderConfig config) {
+    String token = getCache(session, config).get(cacheKey(config));
+    if (token != null) {
+      WechatWorkMetrics.recordTokenCacheHit();
+      return token;
+    }
+    WechatWorkMetrics.recordTokenCacheMiss();
+    return refresh(session, config, false);
+  }
+
+  /**
+   * Drops {@code staleToken} after WeCom rejected it (42001/40014) and returns a fresh one. A
+   * token that was already replaced by another thread is kept, so a burst of rejected calls
+   * results in a single {@code gettoken} request. With the cluster token store the removal is
+   * replicated, so every node drops the rejected token.
+   */
+  static String resetAccessToken(
+      KeycloakSession session, WechatWorkProviderConfig config, String staleToken) {
+    if (staleToken != null) {
+      getCache(session, config).remove(cacheKey(config), staleToken);
+    }
+    return getAccessToken(session, config);
+  }
+
+  /**
+   * Forgets everything held for the tenant of {@code config}: the cached token and its scheduled
+   * refresh. Called when the identity provider is removed or its credentials change.
+   */
+  static void evict(KeycloakSession session, WechatWorkProviderConfig config) {
+    ScheduledFuture<?> scheduled = scheduledRefreshes.remove(tokenKey(config));
+    if (scheduled != null) {
+      scheduled.cancel(false);
+    }
+    getCache(session, config).remove(cacheKey(config));
+  }
+
+  /**
+   * Fetches the tokens of the enabled WeCom identity providers of all realms on a background
+   * thread, {@link #WARM_UP_CONCURRENCY} corp/agents at a time. Returns immediately; failures are
+   * logged and leave the token to the first login.
+   */
+  static void warmUp(KeycloakSessionFactory sessionFactory) {
+    Thread thread = new Thread(() -> warmUpAll(sessionFactory), "wechat-work-token-warm-up");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void warmUpAll(KeycloakSessionFactory sessionFactory) {
+    Map<String, WechatWorkProviderConfig> configs = new LinkedHashMap<>();
+    try {
+      KeycloakModelUtils.runJobInTransaction(
+          sessionFactory,
+          session ->
+              session
+                  .realms()
+                  .getRealmsStream()
+                  .flatMap(RealmModel::getIdentityProvidersStream)
+                  .filter(
+                      model ->
+                          WechatWorkIdentityProviderFactory.PROVIDER_ID.equals(
+                                  model.getProviderId())
+                              && model.isEnabled())
+                  .map(WechatWorkProviderConfig::new)
+                  // 多个身份提供者可能共用同一企业/应用，只获取一次
+                  .forEach(config -> configs.putIfAbsent(tokenKey(config), config)));
+    } catch (RuntimeException e) {
+      logger.warn("failed to look up WeCom identity providers for token warm-up", e);
+      return;
+    }
+    if (configs.isEmpty()) {
+      return;
+    }
+    long started = Time.currentTimeMillis();
+    AtomicInteger warmed = new AtomicInteger();
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            Math.min(configs.size(), WARM_UP_CONCURRENCY),
+            r -> {
+              Thread thread = new Thread(r, "wechat-work-token-warm-up");
+              thread.setDaemon(true);
+              return thread;
+            });
+    for (WechatWorkProviderConfig config : configs.values()) {
+      executor.execute(
+          () -> {
+            try {
+              KeycloakModelUtils.runJobInTransaction(
+                  sessionFactory, session -> getAccessToken(session, config));
+              warmed.incrementAndGet();
+            } catch (RuntimeException e) {
+              logger.warnf(
+                  "warming up access token of %s failed: %s", config.getAlias(), e.getMessage());
+            }
+          });
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(WARM_UP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    logger.infof(
+        "warmed up %d of %d WeCom access tokens in %d ms",
+        warmed.get(), configs.size(), Time.currentTimeMillis() - started);
+  }
+
+  private static String tokenKey(WechatWorkProviderConfig config) {
+    return config.getTenantKey();
+  }
+
+  private static String cacheKey(WechatWorkProviderConfig config) {
+    return ACCESS_TOKEN_CACHE_KEY + ":" + tokenKey(config);
+  }
+
+  private static Cache<String, String> getCache(
+      KeycloakSession session, WechatWorkProviderConfig config) {
+    if (config.isClusterTokenStore()) {
+      // 集群模式下 token 存在 Keycloak 的 work 缓存中，各节点共享
+      InfinispanConnectionProvider provider =
+          session.getProvider(InfinispanConnectionProvider.class);
+      if (provider != null) {
+        return provider.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+      }
+      logger.warn("InfinispanConnectionProvider unavailable, falling back to local token store");
+    }
+    return LocalTokens.cache;
+  }
+
+  private static String refresh(
+      KeycloakSession session, WechatWorkProviderConfig config, boolean force) {
+    String key = tokenKey(config);
+    CompletableFuture<String> flight = new CompletableFuture<>();
+    CompletableFuture<String> running = refreshes.putIfAbsent(key, flight);
+    if (running != null) {
+      return await(running);
+    }
+    try {
+      Cache<String, String> cache = getCache(session, config);
+      // 另一个线程（或集群中的另一个节点）可能刚刚完成刷新
+      String token = force ? null : cache.get(cacheKey(config));
+      if (token == null) {
+        JsonNode j = renewAccessToken(config);
+        token = j.get(ACCESS_TOKEN_KEY).asText();
+        long timeout = j.get("expires_in").asLong();
+        cache.put(cacheKey(config), token, timeout, TimeUnit.SECONDS);
+        scheduleRefresh(session.getKeycloakSessionFactory(), config, refreshDelay(timeout));
+      }
+      flight.complete(token);
+      return token;
+    } catch (RuntimeException e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      refreshes.remove(key, flight);
+    }
+  }
+
+  private static String await(CompletableFuture<String> running) {
+    try {
+      return running.get(REFRESH_WAIT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IdentityBrokerException("interrupted while waiting for access token", e);
+    } catch (ExecutionException e) {
+      throw new IdentityBrokerException("renew access token error", e.getCause());
+    } catch (TimeoutException e) {
+      throw new IdentityBrokerException("timed out waiting for access token", e);
+    }
+  }
+
+  /** Calls {@code gettoken}; transient errors are already retried by the API client. */
+  private static JsonNode renewAccessToken(WechatWorkProviderConfig config) {
+    WechatWorkMetrics.recordTokenRefresh();
+    JsonNode j;
+    try {
+      j =
+          WechatWorkApiClient.get(config)
+              .get(
+                  config.getApiUrl(WechatWorkIdentityProvider.TOKEN_PATH),
+                  TOKEN_FIELDS,
+                  WechatWorkIdentityProvider.WEIXIN_CORP_ID,
+                  config.getClientId(),
+                  WechatWorkIdentityProvider.WEIXIN_CORP_SECRET,
+                  config.getClientSecret());
+    } catch (IOException e) {
+      throw new IdentityBrokerException("renew access token error", e);
+    }
+    int errcode = j.path("errcode").asInt();
+    if (errcode != 0) {
+      throw new WechatWorkApiException(
+          WechatWorkIdentityProvider.TOKEN_PATH, errcode, j.path("errmsg").asText());
+    }
+    if (!j.hasNonNull(ACCESS_TOKEN_KEY)) {
+      throw new IdentityBrokerException("gettoken returned no access token");
+    }
+    return j;
+  }
+
+  private static long refreshDelay(long expiresIn) {
+    if (expiresIn > 2 * REFRESH_AHEAD_SECONDS) {
+      return expiresIn - REFRESH_AHEAD_SECONDS;
+    }
+    return Math.max(expiresIn / 2, 1);
+  }
+
+  private static void scheduleRefresh(
+      KeycloakSessionFactory sessionFactory, WechatWorkProviderConfig config, long delaySeconds) {
+    AtomicReference<ScheduledFuture<?>> self = new AtomicReference<>();
+    ScheduledFuture<?> next =
+        scheduler.schedule(
+            () -> backgroundRefresh(sessionFactory, config, self.get()),
+            delaySeconds,
+            TimeUnit.SECONDS);
+    self.set(next);
+    ScheduledFuture<?> previous = scheduledRefreshes.put(tokenKey(config), next);
+    if (previous != null) {
+      previous.cancel(false);
+    }
+  }
+
+  private static void backgroundRefresh(
+      KeycloakSessionFactory sessionFactory,
+      WechatWorkProviderConfig config,
+      ScheduledFuture<?> self) {
+    try {
+      KeycloakModelUtils.runJobInTransaction(
+          sessionFactory,
+          session -> {
+            Cache<String, String> cache = getCache(session, config);
+            if (cache == LocalTokens.cache && cache.get(cacheKey(config)) == null) {
+              // token 长时间未被使用，已从本地缓存中移除，不再刷新
+              scheduledRefreshes.remove(tokenKey(config), self);
+              logger.debugf("stop refreshing idle access token of %s", config.getClientId());
+              return;
+            }
+            refresh(session, config, true);
+          });
+    } catch (Exception e) {
+      // 旧 token 在到期前仍然可用，稍后再试
+      logger.warn("background refresh of access token failed for " + config.getClientId(), e);
+      scheduleRefresh(sessionFactory, config, REFRESH_RETRY_SECONDS);
+    }
+  }
+
+  /** Single node-local token cache for all tenants, bounded and evicting idle entries. */
+  private static final class LocalTokens {
+    static final Cache<String, String> cache =
+        WechatWorkCaches.getOrCreate(
+            WECHAT_WORK_CACHE_NAME,
+            () -> {
+              ConfigurationBuilder builder = new ConfigurationBuilder();
+              builder.memory().maxCount(MAX_LOCAL_TOKENS);
+              builder.expiration().maxIdle(TOKEN_MAX_IDLE_SECONDS, TimeUnit.SECONDS);
+              return builder.build();
+            });
+  }
+}
@@ -9,6 +9,8 @@ import org.keycloak.models.UserModel;
 
 /** User attribute mapper. */
 public class WechatWorkUserAttributeMapper extends AbstractJsonUserAttributeMapper {
+  public static final String PROVIDER_ID = "wechat-work-user-attribute-mapper";
+
   private static final String PROFILE_MOBILE = WechatWorkIdentityProvider.PROFILE_MOBILE;
   private static final String PROFILE_GENDER = WechatWorkIdentityProvider.PROFILE_GENDER;
   private static final String PROFILE_STATUS = WechatWorkIdentityProvider.PROFILE_STATUS;
@@ -22,7 +24,7 @@ public class WechatWorkUserAttributeMapper extends AbstractJsonUserAttributeMapp
 
   @Override
   public String getId() {
-    return "wechat-work-user-attribute-mapper";
+    return PROVIDER_ID;
   }
 
   @Override
@@ -32,9 +34,18 @@ public class WechatWorkUserAttributeMapper extends AbstractJsonUserAttributeMapp
       UserModel user,
       IdentityProviderMapperModel mapperModel,
       BrokeredIdentityContext context) {
-    user.setSingleAttribute(PROFILE_MOBILE, context.getUserAttribute(PROFILE_MOBILE));
-    user.setSingleAttribute(PROFILE_GENDER, context.getUserAttribute(PROFILE_GENDER));
-    user.setSingleAttribute(PROFILE_STATUS, context.getUserAttribute(PROFILE_STATUS));
-    user.setSingleAttribute(PROFILE_ENABLE, context.getUserAttribute(PROFILE_ENABLE));
+    if (Boolean.TRUE.equals(
+        context.getContextData().get(WechatWorkIdentityProvider.CONTEXT_EXCHANGE_CACHED))) {
+      // 令牌交换缓存命中时不带属性，保留首次交换写入的值
+      return;
+    }
+    WechatWorkUserUpdates.setAttribute(
+        user, PROFILE_MOBILE, context.getUserAttribute(PROFILE_MOBILE));
+    WechatWorkUserUpdates.setAttribute(
+        user, PROFILE_GENDER, context.getUserAttribute(PROFILE_GENDER));
+    WechatWorkUserUpdates.setAttribute(
+        user, PROFILE_STATUS, context.getUserAttribute(PROFILE_STATUS));
+    WechatWorkUserUpdates.setAttribute(
+        user, PROFILE_ENABLE, context.getUserAttribute(PROFILE_ENABLE));
   }
 }
@@ -0,0 +1,154 @@
+package org.keycloak.social.wechat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Applies brokered values to a {@link UserModel}, skipping every write whose value is already
+ * stored. Keeps the user store from issuing UPDATEs when a login changed nothing.
+ */
+final class WechatWorkUserUpdates {
+  private static final LongAdder skippedWrites = new LongAdder();
+
+  private WechatWorkUserUpdates() {}
+
+  /** Sets a single-valued attribute, returning whether it was written. */
+  static boolean setAttribute(UserModel user, String name, String value) {
+    List<String> current = user.getAttributeStream(name).collect(Collectors.toList());
+    boolean unchanged =
+        value == null
+            ? current.isEmpty()
+            : current.size() == 1 && value.equals(current.get(0));
+    if (unchanged) {
+      skippedWrites.increment();
+      return false;
+    }
+    user.setSingleAttribute(name, value);
+    return true;
+  }
+
+  static boolean setUsername(UserModel user, String username) {
+    // Keycloak 保存的用户名和邮箱都是小写
+    if (Objects.equals(KeycloakModelUtils.toLowerCaseSafe(username), user.getUsername())) {
+      skippedWrites.increment();
+      return false;
+    }
+    user.setUsername(username);
+    return true;
+  }
+
+  static boolean setEmail(UserModel user, String email) {
+    if (Objects.equals(KeycloakModelUtils.toLowerCaseSafe(email), user.getEmail())) {
+      skippedWrites.increment();
+      return false;
+    }
+    user.setEmail(email);
+    return true;
+  }
+
+  static boolean setFirstName(UserModel user, String firstName) {
+    if (Objects.equals(firstName, user.getFirstName())) {
+      skippedWrites.increment();
+      return false;
+    }
+    user.setFirstName(firstName);
+    return true;
+  }
+
+  static boolean setLastName(UserModel user, String lastName) {
+    if (Objects.equals(lastName, user.getLastName())) {
+      skippedWrites.increment();
+      return false;
+    }
+    user.setLastName(lastName);
+    return true;
+  }
+
+  /**
+   * Applies the names, email and mapped attributes of {@code identity} to {@code user}.
+   *
+   * @return whether anything was written
+   */
+  static boolean apply(
+      UserModel user, BrokeredIdentityContext identity, WechatWorkProfileMapping mapping) {
+    boolean changed = false;
+    for (String attribute : mapping.getAttributeNames()) {
+      changed |= setAttribute(user, attribute, identity.getUserAttribute(attribute));
+    }
+    changed |= setUsername(user, identity.getUsername());
+    changed |= setFirstName(user, identity.getFirstName());
+    changed |= setLastName(user, identity.getLastName());
+    changed |= setEmail(user, identity.getEmail());
+    return changed;
+  }
+
+  /**
+   * Applies {@code changes}, a profile holding only the fields that changed such as a contact
+   * change event. A value is only written when every field it is mapped from is in {@code
+   * changes}; a value mapped from several fields of which only some changed cannot be computed.
+   *
+   * @return whether every value mapped from a field of {@code changes} was written
+   */
+  static boolean applyChanges(UserModel user, JsonNode changes, WechatWorkProfileMapping mapping) {
+    BrokeredIdentityContext identity = mapping.map(changes);
+    boolean complete = true;
+    String[] attributes = mapping.getAttributeNames();
+    for (int i = 0; i < attributes.length; i++) {
+      Coverage coverage = Coverage.of(changes, mapping.getAttributeSources(i));
+      if (coverage == Coverage.ALL) {
+        setAttribute(user, attributes[i], identity.getUserAttribute(attributes[i]));
+      }
+      complete &= coverage != Coverage.SOME;
+    }
+    Coverage username = Coverage.of(changes, mapping.getUsernameSources());
+    if (username == Coverage.ALL) {
+      setUsername(user, identity.getUsername());
+    }
+    Coverage firstName = Coverage.of(changes, mapping.getFirstNameSources());
+    if (firstName == Coverage.ALL) {
+      setFirstName(user, identity.getFirstName());
+    }
+    Coverage lastName = Coverage.of(changes, mapping.getLastNameSources());
+    if (lastName == Coverage.ALL) {
+      setLastName(user, identity.getLastName());
+    }
+    Coverage email = Coverage.of(changes, mapping.getEmailSources());
+    if (email == Coverage.ALL) {
+      setEmail(user, identity.getEmail());
+    }
+    return complete
+        && username != Coverage.SOME
+        && firstName != Coverage.SOME
+        && lastName != Coverage.SOME
+        && email != Coverage.SOME;
+  }
+
+  /** Number of user and attribute writes skipped because the value was unchanged. */
+  static long getSkippedWriteCount() {
+    return skippedWrites.sum();
+  }
+
+  /** How many of the fields a value is mapped from are present in a partial profile. */
+  private enum Coverage {
+    NONE,
+    SOME,
+    ALL;
+
+    static Coverage of(JsonNode changes, Set<String> sources) {
+      int present = 0;
+      for (String source : sources) {
+        if (changes.has(source)) {
+          present++;
+        }
+      }
+      return present == 0 ? NONE : present == sources.size() ? ALL : SOME;
+    }
+  }
+}
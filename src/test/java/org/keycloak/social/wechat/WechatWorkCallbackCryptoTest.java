@@ -0,0 +1,129 @@
+package org.keycloak.social.wechat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.Test;
+
+public class WechatWorkCallbackCryptoTest {
+  // 企业微信官方 WXBizMsgCrypt 示例中验证回调 URL 的数据
+  private static final String TOKEN = "QDG6eK";
+  private static final String ENCODING_AES_KEY = "jWmYm7qr5nMoAUwZRjGtBxmz3KA1tkAj3ykkR6q2B2C";
+  private static final String CORP_ID = "wx5823bf96d3bd56c7";
+  private static final String SIGNATURE = "5c45ff5e21c57e6ad56bac8758b79b1d9ac89fd3";
+  private static final String TIMESTAMP = "1409659589";
+  private static final String NONCE = "263014780";
+  private static final String ECHO_STR =
+      "P9nAzCzyDtyTWESHep1vC5X9xho/qYX3Zpb4yKa9SKld1DsH3Iyt3tP3zNdtp+4RPcs8TgAE7OaBO+FZXvnaqQ==";
+  private static final String ECHO = "1616140317555161061";
+
+  private final WechatWorkCallbackCrypto crypto =
+      new WechatWorkCallbackCrypto(TOKEN, ENCODING_AES_KEY, CORP_ID);
+
+  @Test
+  public void verifiesSampleSignature() {
+    assertTrue(crypto.verify(SIGNATURE, TIMESTAMP, NONCE, ECHO_STR));
+    assertTrue(crypto.verify(SIGNATURE.toUpperCase(), TIMESTAMP, NONCE, ECHO_STR));
+  }
+
+  @Test
+  public void rejectsBadSignature() {
+    assertFalse(crypto.verify(SIGNATURE.replace('5', '6'), TIMESTAMP, NONCE, ECHO_STR));
+    assertFalse(crypto.verify(SIGNATURE, "1409659590", NONCE, ECHO_STR));
+    assertFalse(crypto.verify(SIGNATURE, TIMESTAMP, NONCE, ECHO_STR.substring(1)));
+    assertFalse(crypto.verify(null, TIMESTAMP, NONCE, ECHO_STR));
+    assertFalse(
+        new WechatWorkCallbackCrypto("other", ENCODING_AES_KEY, CORP_ID)
+            .verify(SIGNATURE, TIMESTAMP, NONCE, ECHO_STR));
+  }
+
+  @Test
+  public void decryptsSampleMessage() {
+    assertEquals(ECHO, crypto.decrypt(ECHO_STR));
+  }
+
+  @Test
+  public void decryptsMessageOfAnyLength() throws Exception {
+    for (String text : new String[] {"", "<xml><UserID>zhangsan</UserID></xml>", "张三"}) {
+      byte[] message = message(text, CORP_ID);
+      int pad = 32 - message.length % 32;
+      assertEquals(text, crypto.decrypt(encrypt(pad(message, pad, pad))));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInconsistentPadding() throws Exception {
+    byte[] message = message("<xml/>", CORP_ID);
+    int pad = 32 - message.length % 32;
+    byte[] padded = pad(message, pad, pad);
+    padded[padded.length - 2] = 0;
+    crypto.decrypt(encrypt(padded));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsZeroPadding() throws Exception {
+    byte[] message = message("<xml/>", CORP_ID);
+    crypto.decrypt(encrypt(pad(message, 32 - message.length % 32, 0)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsPaddingLongerThanBlock() throws Exception {
+    byte[] message = message("<xml/>", CORP_ID);
+    crypto.decrypt(encrypt(pad(message, 32 - message.length % 32 + 32, 33)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsMessageOfOtherCorp() {
+    new WechatWorkCallbackCrypto(TOKEN, ENCODING_AES_KEY, "wx0000000000000000").decrypt(ECHO_STR);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsLengthBeyondMessage() throws Exception {
+    byte[] message = message("<xml/>", CORP_ID);
+    ByteBuffer.wrap(message).putInt(16, 1000);
+    int pad = 32 - message.length % 32;
+    crypto.decrypt(encrypt(pad(message, pad, pad)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsShortKey() {
+    new WechatWorkCallbackCrypto(TOKEN, ENCODING_AES_KEY.substring(4), CORP_ID);
+  }
+
+  /** Random bytes, network order length, text and receive id, as WXBizMsgCrypt lays them out. */
+  private static byte[] message(String text, String receiveId) {
+    byte[] content = text.getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write("0123456789abcdef".getBytes(StandardCharsets.UTF_8), 0, 16);
+    out.write(ByteBuffer.allocate(4).putInt(content.length).array(), 0, 4);
+    out.write(content, 0, content.length);
+    byte[] id = receiveId.getBytes(StandardCharsets.UTF_8);
+    out.write(id, 0, id.length);
+    return out.toByteArray();
+  }
+
+  private static byte[] pad(byte[] message, int count, int value) {
+    byte[] padded = Arrays.copyOf(message, message.length + count);
+    Arrays.fill(padded, message.length, padded.length, (byte) value);
+    return padded;
+  }
+
+  private static String encrypt(byte[] plain) throws Exception {
+    byte[] aesKey = Base64.getDecoder().decode(ENCODING_AES_KEY + "=");
+    Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+    cipher.init(
+        Cipher.ENCRYPT_MODE,
+        new SecretKeySpec(aesKey, "AES"),
+        new IvParameterSpec(Arrays.copyOfRange(aesKey, 0, 16)));
+    return Base64.getEncoder().encodeToString(cipher.doFinal(plain));
+  }
+}
@@ -0,0 +1,87 @@
+package org.keycloak.social.wechat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+
+public class WechatWorkResponseDecoderTest {
+  private static final String USER =
+      "{\"errcode\":0,\"errmsg\":\"ok\",\"userid\":\"zhangsan\",\"name\":\"张三\","
+          + "\"department\":[1,2],\"extattr\":{\"attrs\":[{\"type\":0,\"name\":\"爱好\","
+          + "\"text\":{\"value\":\"旅游\"}}]},\"external_profile\":{\"external_attr\":[]}}";
+
+  @Test
+  public void keepsSelectedFields() throws IOException {
+    JsonNode user =
+        WechatWorkResponseDecoder.decode(
+            in(USER), new HashSet<>(Arrays.asList("errcode", "userid", "department")), 1024);
+    assertEquals(3, user.size());
+    assertEquals(0, user.path("errcode").asInt());
+    assertEquals("zhangsan", user.path("userid").asText());
+    assertEquals(2, user.path("department").size());
+    assertTrue(user.path("extattr").isMissingNode());
+  }
+
+  @Test
+  public void keepsWholeResponseWithoutFields() throws IOException {
+    JsonNode user = WechatWorkResponseDecoder.decode(in(USER), null, 1024);
+    assertEquals("张三", user.path("name").asText());
+    assertEquals("旅游", user.at("/extattr/attrs/0/text/value").asText());
+  }
+
+  @Test
+  public void readsResponseOfMaximumSize() throws IOException {
+    int size = USER.getBytes(StandardCharsets.UTF_8).length;
+    JsonNode user =
+        WechatWorkResponseDecoder.decode(in(USER), Collections.singleton("userid"), size);
+    assertEquals("zhangsan", user.path("userid").asText());
+  }
+
+  @Test
+  public void rejectsResponseOverMaximumSize() {
+    int size = USER.getBytes(StandardCharsets.UTF_8).length;
+    try {
+      WechatWorkResponseDecoder.decode(in(USER), Collections.singleton("userid"), size - 1);
+      fail("response over the limit was decoded");
+    } catch (IOException e) {
+      assertEquals("WeCom response exceeds " + (size - 1) + " bytes", e.getMessage());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsResponseThatIsNotAnObject() throws IOException {
+    WechatWorkResponseDecoder.decode(in("[{\"errcode\":0}]"), null, 1024);
+  }
+
+  @Test
+  public void streamsArrayElementsWithSelectedFields() throws IOException {
+    String list =
+        "{\"errcode\":0,\"userlist\":[{\"userid\":\"zhangsan\",\"name\":\"张三\"},"
+            + "{\"userid\":\"lisi\",\"name\":\"李四\"}],\"errmsg\":\"ok\"}";
+    List<JsonNode> members = new ArrayList<>();
+    JsonNode result =
+        WechatWorkResponseDecoder.decodeArray(
+            in(list), "userlist", Collections.singleton("userid"), members::add);
+    assertEquals(2, members.size());
+    assertEquals("lisi", members.get(1).path("userid").asText());
+    assertTrue(members.get(1).path("name").isMissingNode());
+    assertEquals("ok", result.path("errmsg").asText());
+    assertTrue(result.path("userlist").isMissingNode());
+  }
+
+  private static InputStream in(String json) {
+    return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+  }
+}